@@ -19,6 +19,7 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.logging.Level;
 import com.frdfsnlght.transporter.api.RemoteException;
+import com.frdfsnlght.transporter.api.RemoteFuture;
 import com.frdfsnlght.transporter.api.TransporterException;
 import org.bukkit.ChatColor;
 import org.bukkit.Location;
@@ -51,6 +52,52 @@ public final class APIBackend {
         });
     }
 
+    // conversions from the "result" of an API call to the type returned to the caller
+
+    static final RemoteFuture.Function<TypeMap,String> STRING_RESULT = new RemoteFuture.Function<TypeMap,String>() {
+        @Override
+        public String apply(TypeMap m) {
+            return m.getString("result");
+        }
+    };
+
+    static final RemoteFuture.Function<TypeMap,Integer> INT_RESULT = new RemoteFuture.Function<TypeMap,Integer>() {
+        @Override
+        public Integer apply(TypeMap m) {
+            return m.getInt("result");
+        }
+    };
+
+    static final RemoteFuture.Function<TypeMap,Long> LONG_RESULT = new RemoteFuture.Function<TypeMap,Long>() {
+        @Override
+        public Long apply(TypeMap m) {
+            return m.getLong("result");
+        }
+    };
+
+    static final RemoteFuture.Function<TypeMap,Boolean> BOOLEAN_RESULT = new RemoteFuture.Function<TypeMap,Boolean>() {
+        @Override
+        public Boolean apply(TypeMap m) {
+            return m.getBoolean("result");
+        }
+    };
+
+    static final RemoteFuture.Function<TypeMap,Void> VOID_RESULT = new RemoteFuture.Function<TypeMap,Void>() {
+        @Override
+        public Void apply(TypeMap m) {
+            return null;
+        }
+    };
+
+    static <T extends Enum<T>> RemoteFuture.Function<TypeMap,T> enumResult(final Class<T> cls) {
+        return new RemoteFuture.Function<TypeMap,T>() {
+            @Override
+            public T apply(TypeMap m) {
+                return Utils.valueOf(cls, m.getString("result"));
+            }
+        };
+    }
+
     public static void onConfigLoad(Context ctx) {}
 
     public static void onConfigSave() {}
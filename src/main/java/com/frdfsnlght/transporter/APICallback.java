@@ -16,6 +16,7 @@
 package com.frdfsnlght.transporter;
 
 import com.frdfsnlght.transporter.api.Callback;
+import com.frdfsnlght.transporter.net.TimerWheel;
 
 /**
  *
@@ -24,6 +25,7 @@ import com.frdfsnlght.transporter.api.Callback;
 public abstract class APICallback<T> extends Callback<T> {
 
     private long requestId = 0;
+    private TimerWheel.Timeout timeout = null;
 
     public APICallback() {
         super();
@@ -37,4 +39,14 @@ public abstract class APICallback<T> extends Callback<T> {
         requestId = rid;
     }
 
+    public void setTimeout(TimerWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    public void cancelTimeout() {
+        if (timeout == null) return;
+        timeout.cancel();
+        timeout = null;
+    }
+
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of TypeMap values used on server links.
+ * <p>
+ * Every value starts with a one byte type tag. Integral numbers are
+ * zig-zag varints, doubles are 8 bytes, strings are a varint byte length
+ * followed by raw UTF-8, and maps and lists are a varint entry count
+ * followed by their entries. Decoding produces the same value types as
+ * {@link TypeMap#decode}.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class Binary {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MIN_BUFFER_SIZE = 256;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_TRUE = 2;
+    private static final byte TYPE_FALSE = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_MAP = 6;
+    private static final byte TYPE_LIST = 7;
+
+    /**
+     * Encodes the value into a new buffer.
+     * @param o the value to encode
+     * @return a buffer positioned at the start of the encoded data
+     */
+    public static ByteBuffer encode(Object o) {
+        return encode(o, null);
+    }
+
+    /**
+     * Encodes the value into the supplied buffer, starting at its position.
+     * <p>
+     * If the buffer is too small, a larger buffer is allocated and
+     * everything before the original position is carried over. The buffer
+     * actually used is returned flipped and ready for reading, so callers
+     * can keep it and clear it for the next message.
+     * </p>
+     * @param o the value to encode
+     * @param buf the buffer to encode into, may be null
+     * @return the buffer holding the encoded data
+     */
+    public static ByteBuffer encode(Object o, ByteBuffer buf) {
+        if (buf == null) buf = ByteBuffer.allocate(MIN_BUFFER_SIZE);
+        Binary b = new Binary(buf);
+        b.encodeValue(o);
+        b.buffer.flip();
+        return b.buffer;
+    }
+
+    /**
+     * Encodes a list from values that have already been encoded.
+     * @param values the encoded values
+     * @return a buffer positioned at the start of the encoded list
+     */
+    public static ByteBuffer encodeList(List<byte[]> values) {
+        int size = 11;
+        for (byte[] v : values) size += v.length;
+        Binary b = new Binary(ByteBuffer.allocate(size));
+        b.buffer.put(TYPE_LIST);
+        b.encodeVarint(values.size());
+        for (byte[] v : values)
+            b.buffer.put(v);
+        b.buffer.flip();
+        return b.buffer;
+    }
+
+    /**
+     * Decodes a single value from the buffer, starting at its position.
+     * <p>
+     * On return, the buffer is positioned after the decoded value.
+     * </p>
+     * @param buf the buffer to decode from
+     * @return the decoded value
+     */
+    public static Object decode(ByteBuffer buf) {
+        try {
+            return decodeValue(buf);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("unexpected end of binary data at " + buf.position());
+        }
+    }
+
+    private static Object decodeValue(ByteBuffer buf) {
+        byte type = buf.get();
+        switch (type) {
+            case TYPE_NULL: return null;
+            case TYPE_STRING: return decodeString(buf);
+            case TYPE_TRUE: return Boolean.TRUE;
+            case TYPE_FALSE: return Boolean.FALSE;
+            case TYPE_LONG: return decodeLong(buf);
+            case TYPE_DOUBLE: return buf.getDouble();
+            case TYPE_MAP: return decodeMap(buf);
+            case TYPE_LIST: return decodeList(buf);
+            default:
+                throw new IllegalArgumentException("unable to decode type " + type + " at " + (buf.position() - 1));
+        }
+    }
+
+    private static String decodeString(ByteBuffer buf) {
+        int len = decodeLength(buf);
+        if (len > buf.remaining())
+            throw new BufferUnderflowException();
+        String s;
+        if (buf.hasArray())
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, UTF8);
+        else {
+            byte[] data = new byte[len];
+            buf.get(data);
+            return new String(data, UTF8);
+        }
+        buf.position(buf.position() + len);
+        return s;
+    }
+
+    private static Long decodeLong(ByteBuffer buf) {
+        long v = decodeVarint(buf);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static TypeMap decodeMap(ByteBuffer buf) {
+        int len = decodeLength(buf);
+        TypeMap m = new TypeMap();
+        for (int i = 0; i < len; i++) {
+            String key = decodeString(buf);
+            m.put(key, decodeValue(buf));
+        }
+        return m;
+    }
+
+    private static List<Object> decodeList(ByteBuffer buf) {
+        int len = decodeLength(buf);
+        List<Object> l = new ArrayList<Object>(Math.min(len, buf.remaining()));
+        for (int i = 0; i < len; i++)
+            l.add(decodeValue(buf));
+        return l;
+    }
+
+    private static int decodeLength(ByteBuffer buf) {
+        long len = decodeVarint(buf);
+        if ((len < 0) || (len > Integer.MAX_VALUE))
+            throw new IllegalArgumentException("invalid length at " + buf.position());
+        return (int)len;
+    }
+
+    private static long decodeVarint(ByteBuffer buf) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            v |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IllegalArgumentException("invalid varint at " + buf.position());
+    }
+
+    private ByteBuffer buffer;
+
+    private Binary(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    private void encodeValue(Object v) {
+        if (v == null) {
+            ensure(1);
+            buffer.put(TYPE_NULL);
+        } else if (v instanceof String)
+            encodeString(TYPE_STRING, (String)v);
+        else if (v instanceof Boolean) {
+            ensure(1);
+            buffer.put(((Boolean)v) ? TYPE_TRUE : TYPE_FALSE);
+        } else if ((v instanceof Byte) || (v instanceof Short) || (v instanceof Integer) || (v instanceof Long)) {
+            long l = ((Number)v).longValue();
+            ensure(11);
+            buffer.put(TYPE_LONG);
+            encodeVarint((l << 1) ^ (l >> 63));
+        } else if ((v instanceof Float) || (v instanceof Double)) {
+            ensure(9);
+            buffer.put(TYPE_DOUBLE);
+            buffer.putDouble(((Number)v).doubleValue());
+        } else if (v instanceof TypeMap)
+            encodeMap((TypeMap)v);
+        else if (v instanceof Collection)
+            encodeList((Collection)v);
+        else
+            throw new IllegalArgumentException("unable to encode '" + v.getClass().getName() + "'");
+    }
+
+    // a type of TYPE_NULL means no tag is written, as for map keys
+    private void encodeString(byte type, String v) {
+        byte[] data = v.getBytes(UTF8);
+        ensure(data.length + 6);
+        if (type != TYPE_NULL) buffer.put(type);
+        encodeVarint(data.length);
+        buffer.put(data);
+    }
+
+    private void encodeMap(TypeMap v) {
+        ensure(6);
+        buffer.put(TYPE_MAP);
+        encodeVarint(v.size());
+        for (Map.Entry<String,Object> e : v.entrySet()) {
+            encodeString(TYPE_NULL, e.getKey());
+            encodeValue(e.getValue());
+        }
+    }
+
+    private void encodeList(Collection v) {
+        ensure(6);
+        buffer.put(TYPE_LIST);
+        encodeVarint(v.size());
+        for (Object o : v)
+            encodeValue(o);
+    }
+
+    // callers must have already ensured room for 10 bytes
+    private void encodeVarint(long v) {
+        while ((v & ~0x7fL) != 0) {
+            buffer.put((byte)((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte)v);
+    }
+
+    private void ensure(int needed) {
+        if (buffer.remaining() >= needed) return;
+        int size = Math.max(buffer.capacity() * 2, buffer.position() + needed);
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(size, MIN_BUFFER_SIZE));
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+
+}
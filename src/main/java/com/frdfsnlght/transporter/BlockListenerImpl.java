@@ -15,6 +15,7 @@
  */
 package com.frdfsnlght.transporter;
 
+import com.frdfsnlght.transporter.GateMap.Roles;
 import com.frdfsnlght.transporter.api.GateException;
 import com.frdfsnlght.transporter.api.TransporterException;
 import org.bukkit.block.Block;
@@ -47,14 +48,16 @@ public class BlockListenerImpl implements Listener {
 
     @EventHandler(priority = EventPriority.NORMAL, ignoreCancelled = true)
     public void onBlockBreak(BlockBreakEvent event) {
-        LocalGateImpl gate = Gates.findGateForProtection(event.getBlock().getLocation());
+        Roles roles = Gates.findRoles(event.getBlock().getLocation());
+        if (roles == null) return;
+        LocalGateImpl gate = roles.getGate(GateMap.PROTECTION);
         if (gate != null) {
             event.setCancelled(true);
             gate.onProtect(event.getBlock().getLocation());
             return;
         }
 
-        gate = Gates.findGateForScreen(event.getBlock().getLocation());
+        gate = roles.getGate(GateMap.SCREEN);
         if (gate != null) {
             Context ctx = new Context(event.getPlayer());
             try {
@@ -132,7 +135,9 @@ public class BlockListenerImpl implements Listener {
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onBlockRedstone(BlockRedstoneEvent event) {
-        LocalGateImpl g = Gates.findGateForTrigger(event.getBlock().getLocation());
+        Roles roles = Gates.findRoles(event.getBlock().getLocation());
+        if (roles == null) return;
+        LocalGateImpl g = roles.getGate(GateMap.TRIGGER);
         if (! (g instanceof LocalBlockGateImpl)) return;
         LocalBlockGateImpl gate = (LocalBlockGateImpl)g;
         if (gate != null) {
@@ -173,7 +178,7 @@ public class BlockListenerImpl implements Listener {
             return;
         }
 
-        g = Gates.findGateForSwitch(event.getBlock().getLocation());
+        g = roles.getGate(GateMap.SWITCH);
         if (! (g instanceof LocalBlockGateImpl)) return;
         gate = (LocalBlockGateImpl)g;
 
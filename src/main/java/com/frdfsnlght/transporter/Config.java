@@ -66,6 +66,8 @@ public final class Config {
         OPTIONS.add("dynmapMarkerSetLabel");
         OPTIONS.add("exportedGatesFile");
         OPTIONS.add("worldLoadDelay");
+        OPTIONS.add("tickBudget");
+        OPTIONS.add("gateIndex");
         OPTIONS.add("showGatesSavedMessage");
         OPTIONS.add("httpProxyHost");
         OPTIONS.add("httpProxyType");
@@ -145,6 +147,7 @@ public final class Config {
         Network.onConfigLoad(ctx);
         APIBackend.onConfigLoad(ctx);
         Pins.onConfigLoad(ctx);
+        Gates.updateIndexes();
     }
 
     public static void save(Context ctx) {
@@ -494,6 +497,32 @@ public final class Config {
         setPropertyDirect("global.worldLoadDelay", i);
     }
 
+    // microseconds
+    public static int getTickBudget() {
+        return config.getInt("global.tickBudget", 5000);
+    }
+
+    public static void setTickBudget(int i) {
+        if (i < 100)
+            throw new IllegalArgumentException("tickBudget must be at least 100");
+        setPropertyDirect("global.tickBudget", i);
+    }
+
+    public static String getGateIndex() {
+        return config.getString("global.gateIndex", "chunk");
+    }
+
+    public static void setGateIndex(String s) {
+        if ((s != null) && (s.equals("-") || s.equals("*"))) s = null;
+        if (s != null) {
+            s = s.toLowerCase();
+            if ((! s.equals("chunk")) && (! s.equals("tree")))
+                throw new IllegalArgumentException("gateIndex must be 'chunk' or 'tree'");
+        }
+        setPropertyDirect("global.gateIndex", s);
+        Gates.updateIndexes();
+    }
+
     public static boolean getShowGatesSavedMessage() {
         return config.getBoolean("global.showGatesSavedMessages", true);
     }
@@ -90,7 +90,7 @@ public final class Countdown {
             public void run() {
                 tick();
             }
-        }, gate.getCountdownInterval());
+        }, gate.getCountdownInterval(), WorkQueue.Priority.RESERVATION);
     }
 
     private String expand(String format) {
@@ -15,9 +15,12 @@
  */
 package com.frdfsnlght.transporter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.bukkit.Location;
@@ -29,30 +32,125 @@ import org.bukkit.World;
  */
 public final class GateMap {
 
+    // what a volume is for, a volume can have more than one
+    public static final int PORTAL = 0x01;
+    public static final int PROTECTION = 0x02;
+    public static final int SCREEN = 0x04;
+    public static final int SWITCH = 0x08;
+    public static final int TRIGGER = 0x10;
+    public static final int ALL_ROLES = 0x1f;
+
+    private static final int ROLE_COUNT = 5;
+
+    // anything that moves further than this between events was teleported
+    private static final int MAX_SEGMENT_BLOCKS = 64;
+
     private Map<World,WorldMap> worlds = new HashMap<World,WorldMap>();
+    private boolean chunked = false;
 
     public GateMap() {}
 
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    // switches between the tree and chunk indexes, volumes already in the map are moved over
+    public void setChunked(boolean chunked) {
+        if (chunked == this.chunked) return;
+        this.chunked = chunked;
+        Map<World,WorldMap> oldWorlds = worlds;
+        worlds = new HashMap<World,WorldMap>();
+        for (WorldMap wmap : oldWorlds.values())
+            for (Volume volume : wmap.volumes)
+                put(volume);
+    }
+
     public void put(Volume volume) {
         World world = volume.getWorld();
         if (! worlds.containsKey(world))
-            worlds.put(world, new WorldMap());
+            worlds.put(world, chunked ? new ChunkWorldMap() : new TreeWorldMap());
         worlds.get(world).add(volume);
     }
 
-    public LocalGateImpl getGate(Location location) {
+    // returns the first gate found at the location with any of the roles
+    public LocalGateImpl getGate(Location location, int roles) {
         World world = location.getWorld();
         WorldMap wmap = worlds.get(world);
         if (wmap == null) return null;
-        VolumeNode node = wmap.getNode(location);
-        if (node == null) return null;
-        return node.getGate(location);
+        return wmap.find(location.getBlockX(), location.getBlockY(), location.getBlockZ(), roles, null);
+    }
+
+    // Returns the first gate with any of the roles on the way from one
+    // location to the other. The blocks the segment passes through are
+    // walked in order, leaving out the block it starts in.
+    public LocalGateImpl getGate(Location from, Location to, int roles) {
+        World world = to.getWorld();
+        if (from.getWorld() != world) return getGate(to, roles);
+        WorldMap wmap = worlds.get(world);
+        if (wmap == null) return null;
+
+        int x = from.getBlockX();
+        int y = from.getBlockY();
+        int z = from.getBlockZ();
+        int endX = to.getBlockX();
+        int endY = to.getBlockY();
+        int endZ = to.getBlockZ();
+        int steps = Math.abs(endX - x) + Math.abs(endY - y) + Math.abs(endZ - z);
+        if ((steps == 0) || (steps > MAX_SEGMENT_BLOCKS))
+            return wmap.find(endX, endY, endZ, roles, null);
+
+        // step one block boundary at a time, always across the nearest one
+        double dx = to.getX() - from.getX();
+        double dy = to.getY() - from.getY();
+        double dz = to.getZ() - from.getZ();
+        int stepX = Integer.signum(endX - x);
+        int stepY = Integer.signum(endY - y);
+        int stepZ = Integer.signum(endZ - z);
+        double deltaX = (stepX == 0) ? Double.MAX_VALUE : Math.abs(1 / dx);
+        double deltaY = (stepY == 0) ? Double.MAX_VALUE : Math.abs(1 / dy);
+        double deltaZ = (stepZ == 0) ? Double.MAX_VALUE : Math.abs(1 / dz);
+        double maxX = (stepX == 0) ? Double.MAX_VALUE : ((stepX > 0) ? (x + 1 - from.getX()) : (from.getX() - x)) * deltaX;
+        double maxY = (stepY == 0) ? Double.MAX_VALUE : ((stepY > 0) ? (y + 1 - from.getY()) : (from.getY() - y)) * deltaY;
+        double maxZ = (stepZ == 0) ? Double.MAX_VALUE : ((stepZ > 0) ? (z + 1 - from.getZ()) : (from.getZ() - z)) * deltaZ;
+
+        for (int i = 0; i < steps; i++) {
+            // never step past the end block on an axis
+            if ((x != endX) && (((maxX <= maxY) || (y == endY)) && ((maxX <= maxZ) || (z == endZ)))) {
+                x += stepX;
+                maxX += deltaX;
+            } else if ((y != endY) && ((maxY <= maxZ) || (z == endZ))) {
+                y += stepY;
+                maxY += deltaY;
+            } else {
+                z += stepZ;
+                maxZ += deltaZ;
+            }
+            LocalGateImpl gate = wmap.find(x, y, z, roles, null);
+            if (gate != null) return gate;
+        }
+        return null;
     }
 
-    public void removeGate(LocalGateImpl gate) {
+    // returns the gates at the location for every role, or null if there aren't any
+    public Roles findRoles(Location location) {
+        World world = location.getWorld();
+        WorldMap wmap = worlds.get(world);
+        if (wmap == null) return null;
+        // nothing is allocated for the usual miss
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+        if (wmap.find(x, y, z, ALL_ROLES, null) == null) return null;
+        Roles found = new Roles();
+        wmap.find(x, y, z, ALL_ROLES, found);
+        return found;
+    }
+
+    // removes the gate's volumes that have any of the roles
+    public void removeGate(LocalGateImpl gate, int roles) {
         World world = gate.getWorld();
         if (worlds.containsKey(world))
-            worlds.get(world).removeGate(gate);
+            worlds.get(world).removeGate(gate, roles);
     }
 
     public void removeWorld(World world) {
@@ -96,6 +194,26 @@ public final class GateMap {
         return sb.toString();
     }
 
+    public static final class Roles {
+        private final LocalGateImpl[] gates = new LocalGateImpl[ROLE_COUNT];
+        private int roles = 0;
+        private void add(Volume vol) {
+            for (int i = 0; i < ROLE_COUNT; i++) {
+                if ((vol.roles & (1 << i)) == 0) continue;
+                // the first gate found for a role wins, like getGate
+                if (gates[i] != null) continue;
+                gates[i] = vol.gate;
+                roles |= 1 << i;
+            }
+        }
+        public int getRoles() { return roles; }
+        public boolean has(int role) { return (roles & role) != 0; }
+        // the gate for a single role
+        public LocalGateImpl getGate(int role) {
+            return gates[Integer.numberOfTrailingZeros(role)];
+        }
+    }
+
     public static final class Point {
         int x, y, z;
         public Point() {}
@@ -123,7 +241,7 @@ public final class GateMap {
         }
         @Override
         public int hashCode() {
-            return x + y + x;
+            return (((x * 31) + y) * 31) + z;
         }
         @Override
         public String toString() {
@@ -147,26 +265,35 @@ public final class GateMap {
             this(new Point(l1), new Point(l2));
         }
         public void set(Point p) {
-            min.x = max.x = p.x;
-            min.y = max.y = p.y;
-            min.z = max.z = p.z;
+            set(p.x, p.y, p.z);
+        }
+        public void set(int x, int y, int z) {
+            min.x = max.x = x;
+            min.y = max.y = y;
+            min.z = max.z = z;
         }
         public void expand(Point p) {
-            min.x = Math.min(min.x, p.x);
-            min.y = Math.min(min.y, p.y);
-            min.z = Math.min(min.z, p.z);
-            max.x = Math.max(max.x, p.x);
-            max.y = Math.max(max.y, p.y);
-            max.z = Math.max(max.z, p.z);
+            expand(p.x, p.y, p.z);
+        }
+        public void expand(int x, int y, int z) {
+            min.x = Math.min(min.x, x);
+            min.y = Math.min(min.y, y);
+            min.z = Math.min(min.z, z);
+            max.x = Math.max(max.x, x);
+            max.y = Math.max(max.y, y);
+            max.z = Math.max(max.z, z);
         }
         public void expand(Bounds b) {
             expand(b.min);
             expand(b.max);
         }
         public boolean contains(Location loc) {
-            return (loc.getBlockX() >= min.x) && (loc.getBlockX() <= max.x) &&
-                   (loc.getBlockZ() >= min.z) && (loc.getBlockZ() <= max.z) &&
-                   (loc.getBlockY() >= min.y) && (loc.getBlockY() <= max.y);
+            return contains(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        }
+        public boolean contains(int x, int y, int z) {
+            return (x >= min.x) && (x <= max.x) &&
+                   (z >= min.z) && (z <= max.z) &&
+                   (y >= min.y) && (y <= max.y);
         }
         public int sizeX() { return max.x - min.x; }
         public int sizeY() { return max.y - min.y; }
@@ -195,45 +322,36 @@ public final class GateMap {
         }
     }
 
-    private class WorldMap {
+    private abstract class WorldMap {
 
-        private Set<Volume> volumes = new HashSet<Volume>();
-        private VolumeNode root = null;
+        protected Set<Volume> volumes = new HashSet<Volume>();
 
         void add(Volume volume) {
             volumes.add(volume);
-            recalculate();
-        }
-
-        VolumeNode getNode(Location loc) {
-            if (root == null) return null;
-            return root.getNode(loc);
+            index(volume);
         }
 
-        void removeGate(LocalGateImpl gate) {
-            for (Iterator<Volume> i = volumes.iterator(); i.hasNext(); )
-                if (i.next().getGate() == gate)
-                    i.remove();
-            recalculate();
+        void removeGate(LocalGateImpl gate, int roles) {
+            for (Iterator<Volume> i = volumes.iterator(); i.hasNext(); ) {
+                Volume volume = i.next();
+                if ((volume.getGate() != gate) || ((volume.roles & roles) == 0)) continue;
+                i.remove();
+                unindex(volume);
+            }
         }
 
         int size() {
             return volumes.size();
         }
 
-        int nodeCount() {
-            if (root == null) return 0;
-            return root.nodeCount();
-        }
+        abstract void index(Volume volume);
 
-        private void recalculate() {
-//            Utils.debug("!!!! recalculate worldmap !!!!");
-//            Utils.debug(toString());
+        abstract void unindex(Volume volume);
 
-            if (root != null) root.destroy();
-            if ((volumes == null) || volumes.isEmpty()) return;
-            root = new VolumeNode(null, volumes);
-        }
+        // returns the first gate with any of the roles, and adds every match to found if it's given
+        abstract LocalGateImpl find(int x, int y, int z, int roles, Roles found);
+
+        abstract int nodeCount();
 
         @Override
         public String toString() {
@@ -250,25 +368,242 @@ public final class GateMap {
 
     }
 
+    private final class TreeWorldMap extends WorldMap {
+
+        private VolumeNode root = null;
+
+        @Override
+        void index(Volume volume) {
+            Bounds b = volume.bounds;
+            if (root == null)
+                root = new VolumeNode(b.min.x & -VolumeNode.LEAF_SIZE, b.min.z & -VolumeNode.LEAF_SIZE, VolumeNode.LEAF_SIZE);
+            // grow the tree toward the volume until the root covers it
+            while (! root.covers(b)) {
+                if (root.size >= VolumeNode.MAX_ROOT_SIZE) {
+                    Utils.warning("gate volume %s is outside the gate map", volume);
+                    return;
+                }
+                int newX = (b.min.x < root.x) ? (root.x - root.size) : root.x;
+                int newZ = (b.min.z < root.z) ? (root.z - root.size) : root.z;
+                VolumeNode newRoot = new VolumeNode(newX, newZ, root.size * 2);
+                if (root.isEmpty())
+                    root = newRoot;
+                else {
+                    newRoot.volumes = null;
+                    newRoot.children = new VolumeNode[4];
+                    newRoot.children[newRoot.quad(root.x, root.z)] = root;
+                    root = newRoot;
+                }
+            }
+            root.add(volume);
+        }
+
+        @Override
+        void unindex(Volume volume) {
+            if (root != null)
+                root.remove(volume.bounds, volume.gate, volume.roles);
+        }
+
+        @Override
+        void removeGate(LocalGateImpl gate, int roles) {
+            super.removeGate(gate, roles);
+            if (root == null) return;
+            // shrink the tree back down
+            while (true) {
+                if (root.isEmpty()) {
+                    root = null;
+                    return;
+                }
+                if (root.children == null) return;
+                VolumeNode only = null;
+                for (VolumeNode child : root.children) {
+                    if (child == null) continue;
+                    if (only != null) return;
+                    only = child;
+                }
+                root = only;
+            }
+        }
+
+        @Override
+        LocalGateImpl find(int x, int y, int z, int roles, Roles found) {
+            if (root == null) return null;
+            VolumeNode node = root.getNode(x, z);
+            if (node == null) return null;
+            return node.find(x, y, z, roles, found);
+        }
+
+        @Override
+        int nodeCount() {
+            if (root == null) return 0;
+            return root.nodeCount();
+        }
+
+    }
+
+    // Every volume is listed under each chunk it overlaps, in an open
+    // addressing table keyed by the packed chunk coordinates. Most lookups
+    // are in chunks without gates and end after one probe.
+    private final class ChunkWorldMap extends WorldMap {
+
+        private static final int MIN_CAPACITY = 16;
+
+        private long[] keys = new long[MIN_CAPACITY];
+        private Volume[][] values = new Volume[MIN_CAPACITY][];
+        private int chunks = 0;
+
+        @Override
+        void index(Volume volume) {
+            Bounds b = volume.bounds;
+            for (int cx = b.min.x >> 4; cx <= (b.max.x >> 4); cx++)
+                for (int cz = b.min.z >> 4; cz <= (b.max.z >> 4); cz++) {
+                    long key = key(cx, cz);
+                    int i = find(key);
+                    if (i >= 0) {
+                        Volume[] vols = Arrays.copyOf(values[i], values[i].length + 1);
+                        vols[vols.length - 1] = volume;
+                        values[i] = vols;
+                        continue;
+                    }
+                    if (((chunks + 1) * 2) > keys.length) {
+                        resize(keys.length * 2);
+                        i = find(key);
+                    }
+                    i = -1 - i;
+                    keys[i] = key;
+                    values[i] = new Volume[] { volume };
+                    chunks++;
+                }
+        }
+
+        @Override
+        void unindex(Volume volume) {
+            Bounds b = volume.bounds;
+            for (int cx = b.min.x >> 4; cx <= (b.max.x >> 4); cx++)
+                for (int cz = b.min.z >> 4; cz <= (b.max.z >> 4); cz++) {
+                    int i = find(key(cx, cz));
+                    if (i < 0) continue;
+                    Volume[] vols = values[i];
+                    int pos = -1;
+                    for (int j = 0; j < vols.length; j++)
+                        if (vols[j] == volume) {
+                            pos = j;
+                            break;
+                        }
+                    if (pos == -1) continue;
+                    if (vols.length == 1) {
+                        delete(i);
+                        continue;
+                    }
+                    Volume[] newVols = new Volume[vols.length - 1];
+                    System.arraycopy(vols, 0, newVols, 0, pos);
+                    System.arraycopy(vols, pos + 1, newVols, pos, vols.length - pos - 1);
+                    values[i] = newVols;
+                }
+            if ((keys.length > MIN_CAPACITY) && ((chunks * 8) < keys.length))
+                resize(keys.length / 2);
+        }
+
+        @Override
+        LocalGateImpl find(int x, int y, int z, int roles, Roles found) {
+            int i = find(key(x >> 4, z >> 4));
+            if (i < 0) return null;
+            LocalGateImpl gate = null;
+            for (Volume vol : values[i]) {
+                if (((vol.roles & roles) == 0) || (! vol.contains(x, y, z))) continue;
+                if (found == null) return vol.gate;
+                if (gate == null) gate = vol.gate;
+                found.add(vol);
+            }
+            return gate;
+        }
+
+        @Override
+        int nodeCount() {
+            return chunks;
+        }
+
+        private long key(int cx, int cz) {
+            return ((long)cx << 32) | (cz & 0xffffffffL);
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            return (int)(h ^ (h >>> 32)) & (keys.length - 1);
+        }
+
+        // returns the slot holding the key, or -1 - the empty slot where it would go
+        private int find(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key); ; i = (i + 1) & mask) {
+                if (values[i] == null) return -1 - i;
+                if (keys[i] == key) return i;
+            }
+        }
+
+        // moves later entries back so no probe sequence is broken by the hole
+        private void delete(int i) {
+            int mask = keys.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (values[j] == null) break;
+                int k = slot(keys[j]);
+                if ((i <= j) ? ((i < k) && (k <= j)) : ((i < k) || (k <= j))) continue;
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            values[i] = null;
+            chunks--;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Volume[][] oldValues = values;
+            keys = new long[capacity];
+            values = new Volume[capacity][];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] == null) continue;
+                int j = -1 - find(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+
+    }
+
     public static final class Volume {
         protected LocalGateImpl gate;
+        protected int roles;
         protected Bounds bounds = new Bounds();
-        protected Set<Point> points = null;
-        public Volume(LocalGateImpl gate) {
+        // packed coordinates, sorted and without duplicates when sorted is true
+        protected long[] points = null;
+        protected int pointCount = 0;
+        protected boolean sorted = true;
+        public Volume(LocalGateImpl gate, int roles) {
             this.gate = gate;
+            this.roles = roles;
         }
         public World getWorld() { return gate.getWorld(); }
         public Bounds getBounds() { return bounds; }
         public LocalGateImpl getGate() { return gate; }
+        public int getRoles() { return roles; }
         public void addPoint(Point p) {
+            addPoint(p.x, p.y, p.z);
+        }
+        public void addPoint(int x, int y, int z) {
             if (points == null) {
-                points = new HashSet<Point>();
-                points.add(p);
-                bounds.set(p);
+                points = new long[16];
+                bounds.set(x, y, z);
             } else {
-                points.add(p);
-                bounds.expand(p);
+                if (pointCount == points.length)
+                    points = Arrays.copyOf(points, pointCount * 2);
+                bounds.expand(x, y, z);
             }
+            long p = pack(x, y, z);
+            if ((pointCount > 0) && (p <= points[pointCount - 1])) sorted = false;
+            points[pointCount++] = p;
         }
         public void setBounds(Bounds b) {
             bounds.min = b.min;
@@ -279,18 +614,35 @@ public final class GateMap {
             bounds.expand(p2);
         }
         public boolean contains(Location loc) {
-            Point lp = new Point(loc);
-            if (points == null) {
-                if (bounds.contains(loc)) {
-                    return true;
-                }
-                return false;
-            }
-            for (Point p : points)
-                if (p.equals(lp)) {
-                    return true;
-                }
-            return false;
+            return contains(loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        }
+        public boolean contains(int x, int y, int z) {
+            if (! bounds.contains(x, y, z)) return false;
+            if (points == null) return true;
+            if (! sorted) sort();
+            return Arrays.binarySearch(points, 0, pointCount, pack(x, y, z)) >= 0;
+        }
+        private void sort() {
+            Arrays.sort(points, 0, pointCount);
+            int count = 0;
+            for (int i = 0; i < pointCount; i++)
+                if ((count == 0) || (points[i] != points[count - 1]))
+                    points[count++] = points[i];
+            pointCount = count;
+            sorted = true;
+        }
+        // 26 bits each for x and z, which covers the whole world, and 12 for y
+        private static long pack(int x, int y, int z) {
+            return ((long)(x & 0x3ffffff) << 38) | ((long)(z & 0x3ffffff) << 12) | (y & 0xfff);
+        }
+        private static int unpackX(long p) {
+            return (int)(p >> 38);
+        }
+        private static int unpackY(long p) {
+            return (int)(p << 52 >> 52);
+        }
+        private static int unpackZ(long p) {
+            return (int)(p << 26 >> 38);
         }
         public Volume[] split(Point center) {
             Volume[] vols = new Volume[4];
@@ -319,29 +671,19 @@ public final class GateMap {
                 for (int quad = 0; quad < 4; quad++) {
                     Bounds b = bounds.trim(center, quad);
                     if (b == null) continue;
-                    vols[quad] = new Volume(gate);
+                    vols[quad] = new Volume(gate, roles);
                     vols[quad].setBounds(b);
                 }
 
             } else {
-                for (Point p : points)
-                    if (p.x < center.x) {
-                        if (p.z < center.z) {
-                            if (vols[0] == null) vols[0] = new Volume(gate);
-                            vols[0].addPoint(p);
-                        } else {
-                            if (vols[1] == null) vols[1] = new Volume(gate);
-                            vols[1].addPoint(p);
-                        }
-                    } else {
-                        if (p.z < center.z) {
-                            if (vols[2] == null) vols[2] = new Volume(gate);
-                            vols[2].addPoint(p);
-                        } else {
-                            if (vols[3] == null) vols[3] = new Volume(gate);
-                            vols[3].addPoint(p);
-                        }
-                    }
+                for (int i = 0; i < pointCount; i++) {
+                    int x = unpackX(points[i]);
+                    int y = unpackY(points[i]);
+                    int z = unpackZ(points[i]);
+                    int quad = ((x < center.x) ? 0 : 2) + ((z < center.z) ? 0 : 1);
+                    if (vols[quad] == null) vols[quad] = new Volume(gate, roles);
+                    vols[quad].addPoint(x, y, z);
+                }
             }
             return vols;
         }
@@ -354,76 +696,112 @@ public final class GateMap {
                 sb.append(gate.getName());
                 sb.append(",");
             }
-            sb.append("b=");
+            sb.append("r=");
+            sb.append(roles);
+            sb.append(",b=");
             sb.append(bounds);
             if (points != null) {
                 sb.append(",p=");
-                sb.append(points.size());
+                sb.append(pointCount);
             }
             sb.append("]");
             return sb.toString();
         }
     }
 
+    // A square of columns. Leaves hold volumes, or the pieces of volumes
+    // that fall inside them, and split when they get full.
     private final class VolumeNode {
         private static final int LEAF_SIZE = 16;
-        VolumeNode parent = null;
-        Point center;
-        Bounds bounds;
+        private static final int MAX_VOLUMES = 8;
+        // well past the world border, so x + size can't overflow
+        private static final int MAX_ROOT_SIZE = 1 << 28;
+        final int x, z, size;
+        final Point center;
         VolumeNode[] children = null;
-        Set<Volume> volumes = null;
-        VolumeNode(VolumeNode parent, Set<Volume> volumes) {
-            this.parent = parent;
-            center = new Point();
-
-            // find the center
-            for (Volume vol : volumes) {
-                center.x += vol.bounds.min.x + vol.bounds.max.x;
-                center.y += vol.bounds.min.y + vol.bounds.max.y;
-                center.z += vol.bounds.min.z + vol.bounds.max.z;
+        List<Volume> volumes = new ArrayList<Volume>();
+        VolumeNode(int x, int z, int size) {
+            this.x = x;
+            this.z = z;
+            this.size = size;
+            center = new Point(x + (size / 2), 0, z + (size / 2));
+        }
+        boolean covers(Bounds b) {
+            return (b.min.x >= x) && (b.max.x < (x + size)) &&
+                   (b.min.z >= z) && (b.max.z < (z + size));
+        }
+        boolean overlaps(Bounds b) {
+            return (b.max.x >= x) && (b.min.x < (x + size)) &&
+                   (b.max.z >= z) && (b.min.z < (z + size));
+        }
+        boolean isEmpty() {
+            return (children == null) && volumes.isEmpty();
+        }
+        // same quads as Volume.split
+        int quad(int px, int pz) {
+            return ((px < center.x) ? 0 : 2) + ((pz < center.z) ? 0 : 1);
+        }
+        VolumeNode child(int quad) {
+            if (children[quad] == null) {
+                int half = size / 2;
+                children[quad] = new VolumeNode(
+                        x + (((quad & 2) == 0) ? 0 : half),
+                        z + (((quad & 1) == 0) ? 0 : half),
+                        half);
             }
-            center.x = center.x / (volumes.size() * 2);
-            center.y = center.y / (volumes.size() * 2);
-            center.z = center.z / (volumes.size() * 2);
-
-            bounds = new Bounds();
-            bounds.set(center);
-            Set<Volume> vols0 = new HashSet<Volume>();
-            Set<Volume> vols1 = new HashSet<Volume>();
-            Set<Volume> vols2 = new HashSet<Volume>();
-            Set<Volume> vols3 = new HashSet<Volume>();
-
-            // find bounds and create quads
-            for (Volume vol : volumes) {
-                bounds.expand(vol.bounds);
-                Volume[] vols = vol.split(center);
-                if (vols[0] != null) vols0.add(vols[0]);
-                if (vols[1] != null) vols1.add(vols[1]);
-                if (vols[2] != null) vols2.add(vols[2]);
-                if (vols[3] != null) vols3.add(vols[3]);
+            return children[quad];
+        }
+        void add(Volume volume) {
+            if (children == null) {
+                volumes.add(volume);
+                if ((volumes.size() <= MAX_VOLUMES) || (size <= LEAF_SIZE)) return;
+                List<Volume> vols = volumes;
+                volumes = null;
+                children = new VolumeNode[4];
+                for (Volume vol : vols)
+                    addToChildren(vol);
+                return;
             }
-
-            // limit tree growth
-            if ((bounds.sizeX() <= LEAF_SIZE) &&
-                (bounds.sizeZ() <= LEAF_SIZE)) {
-                this.volumes = volumes;
+            addToChildren(volume);
+        }
+        private void addToChildren(Volume volume) {
+            Volume[] vols = volume.split(center);
+            for (int quad = 0; quad < 4; quad++)
+                if (vols[quad] != null) child(quad).add(vols[quad]);
+        }
+        // removes the gate's volumes with any of the roles that overlap the bounds
+        void remove(Bounds b, LocalGateImpl gate, int roles) {
+            if (children == null) {
+                for (Iterator<Volume> i = volumes.iterator(); i.hasNext(); ) {
+                    Volume vol = i.next();
+                    if ((vol.gate == gate) && ((vol.roles & roles) != 0)) i.remove();
+                }
                 return;
             }
-
-            children = new VolumeNode[4];
-            if (! vols0.isEmpty()) children[0] = new VolumeNode(this, vols0);
-            if (! vols1.isEmpty()) children[1] = new VolumeNode(this, vols1);
-            if (! vols2.isEmpty()) children[2] = new VolumeNode(this, vols2);
-            if (! vols3.isEmpty()) children[3] = new VolumeNode(this, vols3);
-
-        }
-        void destroy() {
-            volumes = null;
-            parent = null;
-            if (children != null) {
-                for (int i = 0; i < 4; i++)
-                    if (children[i] != null) children[i].destroy();
+            boolean merge = true;
+            int count = 0;
+            for (int quad = 0; quad < 4; quad++) {
+                VolumeNode child = children[quad];
+                if (child == null) continue;
+                if (child.overlaps(b)) {
+                    child.remove(b, gate, roles);
+                    if (child.isEmpty()) {
+                        children[quad] = null;
+                        continue;
+                    }
+                }
+                if (child.children == null)
+                    count += child.volumes.size();
+                else
+                    merge = false;
+            }
+            // turn a sparse node back into a leaf
+            if (merge && (count <= (MAX_VOLUMES / 2))) {
+                List<Volume> vols = new ArrayList<Volume>(count);
+                for (VolumeNode child : children)
+                    if (child != null) vols.addAll(child.volumes);
                 children = null;
+                volumes = vols;
             }
         }
         int nodeCount() {
@@ -433,32 +811,25 @@ public final class GateMap {
                 if (child != null) count += child.nodeCount();
             return count;
         }
-        LocalGateImpl getGate(Location loc) {
+        LocalGateImpl find(int x, int y, int z, int roles, Roles found) {
             if ((children != null) || (volumes == null)) return null;
-            for (Volume vol : volumes)
-                if (vol.contains(loc)) return vol.gate;
-            return null;
-        }
-        VolumeNode getNode(Location loc) {
-            if (! bounds.contains(loc)) return null;
-            if (children == null) return this;
-            if (loc.getBlockX() < center.x) {
-                if (loc.getBlockZ() < center.z) {
-                    if (children[0] == null) return null;
-                    return children[0].getNode(loc);
-                } else {
-                    if (children[1] == null) return null;
-                    return children[1].getNode(loc);
-                }
-            } else {
-                if (loc.getBlockZ() < center.z) {
-                    if (children[2] == null) return null;
-                    return children[2].getNode(loc);
-                } else {
-                    if (children[3] == null) return null;
-                    return children[3].getNode(loc);
-                }
+            LocalGateImpl gate = null;
+            for (Volume vol : volumes) {
+                if (((vol.roles & roles) == 0) || (! vol.contains(x, y, z))) continue;
+                if (found == null) return vol.gate;
+                if (gate == null) gate = vol.gate;
+                found.add(vol);
+            }
+            return gate;
+        }
+        VolumeNode getNode(int bx, int bz) {
+            if ((bx < x) || (bx >= (x + size)) || (bz < z) || (bz >= (z + size))) return null;
+            VolumeNode node = this;
+            while (node.children != null) {
+                node = node.children[node.quad(bx, bz)];
+                if (node == null) return null;
             }
+            return node;
         }
     }
 
@@ -15,6 +15,7 @@
  */
 package com.frdfsnlght.transporter;
 
+import com.frdfsnlght.transporter.GateMap.Roles;
 import com.frdfsnlght.transporter.GateMap.Volume;
 import com.frdfsnlght.transporter.api.GateException;
 import com.frdfsnlght.transporter.api.TransporterException;
@@ -37,20 +38,9 @@ import org.bukkit.entity.Player;
  */
 public final class Gates {
 
-    // Gate build blocks that are protected
-    private static final GateMap protectionMap = new GateMap();
-
-    // Portal blocks for open, local gates
-    private static final GateMap portalMap = new GateMap();
-
-    // Gate screens for local gates
-    private static final GateMap screenMap = new GateMap();
-
-    // Gate switches for local gates
-    public static final GateMap switchMap = new GateMap();
-
-    // Gate triggers for local gates
-    public static final GateMap triggerMap = new GateMap();
+    // Protected build blocks, portal blocks of open gates, screens, switches
+    // and triggers for local gates, each volume tagged with its roles
+    public static final GateMap gateMap = new GateMap();
 
     // Indexed by full name
     private static final Map<String,GateImpl> gates = new HashMap<String,GateImpl>();
@@ -141,8 +131,7 @@ public final class Gates {
             LocalGateImpl lg = (LocalGateImpl)gate;
             LocalGateCreateEvent event = new LocalGateCreateEvent(lg);
             Global.plugin.getServer().getPluginManager().callEvent(event);
-            for (Server server : Servers.getAll())
-                server.sendGateAdded(lg);
+            Server.broadcastGateAdded(lg);
             Markers.update();
             World world = lg.getWorld();
             if (Config.getAutoAddWorlds())
@@ -166,8 +155,7 @@ public final class Gates {
             LocalGateImpl lg = (LocalGateImpl)gate;
             deselectGate(lg);
             lg.save(false);
-            for (Server server : Servers.getAll())
-                server.sendGateRemoved(lg);
+            Server.broadcastGateRemoved(lg);
             Markers.update();
         }
     }
@@ -182,8 +170,7 @@ public final class Gates {
             LocalGateDestroyEvent event = new LocalGateDestroyEvent(lg);
             Global.plugin.getServer().getPluginManager().callEvent(event);
             lg.destroy(unbuild);
-            for (Server server : Servers.getAll())
-                server.sendGateDestroyed(lg);
+            Server.broadcastGateDestroyed(lg);
             Markers.update();
         }
     }
@@ -208,8 +195,7 @@ public final class Gates {
         if (gate instanceof LocalGateImpl) {
             LocalGateImpl lg = (LocalGateImpl)gate;
             lg.onRenameComplete();
-            for (Server server : Servers.getAll())
-                server.sendGateRenamed(oldFullName, gate.getName());
+            Server.broadcastGateRenamed(oldFullName, gate.getName());
             Markers.update();
         }
     }
@@ -253,72 +239,93 @@ public final class Gates {
 
 
 
+    // all the gates at a block in one lookup, or null if there aren't any
+    public static Roles findRoles(Location loc) {
+        return gateMap.findRoles(loc);
+    }
+
     public static LocalGateImpl findGateForPortal(Location loc) {
-        return portalMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.PORTAL);
+    }
+
+    // checks every block in between when something moved more than one block
+    public static LocalGateImpl findGateForPortal(Location from, Location to) {
+        if ((from == null) ||
+            ((Math.abs(to.getBlockX() - from.getBlockX()) +
+              Math.abs(to.getBlockY() - from.getBlockY()) +
+              Math.abs(to.getBlockZ() - from.getBlockZ())) <= 1))
+            return findGateForPortal(to);
+        return gateMap.getGate(from, to, GateMap.PORTAL);
     }
 
     public static void addPortalVolume(Volume vol) {
-        portalMap.put(vol);
+        gateMap.put(vol);
     }
 
     public static void removePortalVolume(LocalGateImpl gate) {
-        portalMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.PORTAL);
     }
 
     public static LocalGateImpl findGateForProtection(Location loc) {
-        return protectionMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.PROTECTION);
     }
 
     public static void addProtectionVolume(Volume vol) {
-        protectionMap.put(vol);
+        gateMap.put(vol);
     }
 
     public static void removeProtectionVolume(LocalGateImpl gate) {
-        protectionMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.PROTECTION);
     }
 
     public static LocalGateImpl findGateForScreen(Location loc) {
-        return screenMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.SCREEN);
     }
 
     public static void addScreenVolume(Volume vol) {
-        screenMap.put(vol);
+        gateMap.put(vol);
     }
 
     public static void removeScreenVolume(LocalGateImpl gate) {
-        screenMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.SCREEN);
     }
 
     public static LocalGateImpl findGateForSwitch(Location loc) {
-        return switchMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.SWITCH);
     }
 
     public static void addSwitchVolume(Volume vol) {
-        switchMap.put(vol);
+        gateMap.put(vol);
     }
 
     public static void removeSwitchVolume(LocalGateImpl gate) {
-        switchMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.SWITCH);
     }
 
     public static LocalGateImpl findGateForTrigger(Location loc) {
-        return triggerMap.getGate(loc);
+        return gateMap.getGate(loc, GateMap.TRIGGER);
     }
 
     public static void addTriggerVolume(Volume vol) {
-        triggerMap.put(vol);
+        gateMap.put(vol);
     }
 
     public static void removeTriggerVolume(LocalGateImpl gate) {
-        triggerMap.removeGate(gate);
+        gateMap.removeGate(gate, GateMap.TRIGGER);
+    }
+
+    // removes every volume for the gate
+    public static void removeVolumes(LocalGateImpl gate) {
+        gateMap.removeGate(gate, GateMap.ALL_ROLES);
+    }
+
+    // called when the gateIndex option changes
+    public static void updateIndexes() {
+        gateMap.setChunked("chunk".equals(Config.getGateIndex()));
     }
 
     public static void dumpMaps() {
-        Utils.debug("portalMap=%s", portalMap);
-        Utils.debug("protectionMap=%s", protectionMap);
-        Utils.debug("screenMap=%s", screenMap);
-        Utils.debug("switchMap=%s", switchMap);
-        Utils.debug("triggerMap=%s", triggerMap);
+        Utils.debug("gateMap=%s", gateMap);
     }
 
 
@@ -388,7 +388,7 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
     }
 
     private Volume getPortalVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, GateMap.PORTAL);
         vol.setBounds(new Point(p1), new Point(p2));
         return vol;
     }
@@ -438,19 +438,15 @@ public final class LocalAreaGateImpl extends LocalGateImpl implements LocalAreaG
     }
 
     private Volume getBoxVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, GateMap.PROTECTION);
         Bounds bounds = new Bounds(p1, p2);
-        Point p = bounds.min.clone();
         for (int x = bounds.min.x; x <= bounds.max.x; x++) {
-            p.x = x;
             for (int y = bounds.min.y; y <= bounds.max.y; y++) {
-                p.y = y;
                 for (int z = bounds.min.z; z <= bounds.max.z; z++) {
-                    p.z = z;
                     if ((x == bounds.min.x) || (x == bounds.max.x) ||
                         (y == bounds.min.y) || (y == bounds.max.y) ||
                         (z == bounds.min.z) || (z == bounds.max.z)) {
-                        vol.addPoint(p.clone());
+                        vol.addPoint(x, y, z);
                     }
                 }
             }
@@ -267,20 +267,12 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
 
     @Override
     protected void onRemove() {
-        Gates.removePortalVolume(this);
-        Gates.removeProtectionVolume(this);
-        Gates.removeScreenVolume(this);
-        Gates.removeTriggerVolume(this);
-        Gates.removeSwitchVolume(this);
+        Gates.removeVolumes(this);
     }
 
     @Override
     protected void onDestroy(boolean unbuild) {
-        Gates.removePortalVolume(this);
-        Gates.removeProtectionVolume(this);
-        Gates.removeScreenVolume(this);
-        Gates.removeTriggerVolume(this);
-        Gates.removeSwitchVolume(this);
+        Gates.removeVolumes(this);
         if (unbuild) {
             for (GateBlock gb : blocks) {
                 if (! gb.getDetail().isBuildable()) continue;
@@ -368,7 +360,7 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
     }
 
     private Volume getBuildVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, GateMap.PROTECTION);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isBuildable()) continue;
             vol.addPoint(new Point(gb.getLocation()));
@@ -377,7 +369,7 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
     }
 
     private Volume getScreenVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, GateMap.SCREEN);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isScreen()) continue;
             vol.addPoint(new Point(gb.getLocation()));
@@ -386,7 +378,7 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
     }
 
     private Volume getTriggerVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, GateMap.TRIGGER);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isTrigger()) continue;
             vol.addPoint(new Point(gb.getLocation()));
@@ -395,7 +387,7 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
     }
 
     private Volume getSwitchVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, GateMap.SWITCH);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isSwitch()) continue;
             vol.addPoint(new Point(gb.getLocation()));
@@ -404,7 +396,7 @@ public final class LocalBlockGateImpl extends LocalGateImpl implements LocalBloc
     }
 
     private Volume getPortalVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, GateMap.PORTAL);
         for (GateBlock gb : blocks) {
             if (! gb.getDetail().isPortal()) continue;
             vol.addPoint(new Point(gb.getLocation()));
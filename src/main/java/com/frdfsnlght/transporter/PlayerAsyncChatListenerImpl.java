@@ -34,7 +34,7 @@ public class PlayerAsyncChatListenerImpl implements Listener {
                 public void run() {
                     Chat.send(event.getPlayer(), event.getMessage(), event.getFormat());
                 }
-            });
+            }, WorkQueue.Priority.CHAT);
         else
             Chat.send(event.getPlayer(), event.getMessage(), event.getFormat());
     }
@@ -15,6 +15,7 @@
  */
 package com.frdfsnlght.transporter;
 
+import com.frdfsnlght.transporter.GateMap.Roles;
 import com.frdfsnlght.transporter.api.GateException;
 import com.frdfsnlght.transporter.api.ReservationException;
 import com.frdfsnlght.transporter.api.TransporterException;
@@ -206,16 +207,16 @@ public final class PlayerListenerImpl implements Listener {
         Location location = block.getLocation();
         Context ctx = new Context(event.getPlayer());
 
-        LocalGateImpl triggerGate = Gates.findGateForTrigger(location);
-        LocalGateImpl switchGate = Gates.findGateForSwitch(location);
+        Roles roles = Gates.findRoles(location);
+        LocalGateImpl triggerGate = (roles == null) ? null : roles.getGate(GateMap.TRIGGER);
+        LocalGateImpl switchGate = (roles == null) ? null : roles.getGate(GateMap.SWITCH);
         if (event.getPlayer() == testPlayer) {
             Utils.debug("-Interaction-----------------------------------------");
             Utils.debug("location: %s", Utils.blockCoords(location));
             Utils.debug("triggerGate: %s", (triggerGate == null) ? "none" : triggerGate.getFullName());
             Utils.debug("switchGate: %s", (switchGate == null) ? "none" : switchGate.getFullName());
             if ((triggerGate == null) && (switchGate == null)) {
-                Utils.debug("triggerMap: %s", Gates.triggerMap.toString(testPlayer.getWorld()));
-                Utils.debug("switchMap: %s", Gates.switchMap.toString(testPlayer.getWorld()));
+                Utils.debug("gateMap: %s", Gates.gateMap.toString(testPlayer.getWorld()));
             }
         }
 
@@ -281,7 +282,7 @@ public final class PlayerListenerImpl implements Listener {
             (event.getFrom().getBlockZ() == event.getTo().getBlockZ())) return;
 
         Player player = event.getPlayer();
-        LocalGateImpl fromGate = Gates.findGateForPortal(event.getTo());
+        LocalGateImpl fromGate = Gates.findGateForPortal(event.getFrom(), event.getTo());
         if (fromGate == null) {
             ReservationImpl.removeGateLock(player);
             ReservationImpl.removeCountdown(player);
@@ -322,8 +323,7 @@ public final class PlayerListenerImpl implements Listener {
 
  Utils.debug("teleported %s", Utils.blockCoords(location));
 
-        for (Server server : Servers.getAll())
-            server.sendPlayerChangeWorld(player);
+        Server.broadcastPlayerChangeWorld(player);
     }
 
     @EventHandler(priority = EventPriority.NORMAL)
@@ -341,8 +341,7 @@ public final class PlayerListenerImpl implements Listener {
             r = null;
         }
 
-        for (Server server : Servers.getAll())
-            server.sendPlayerJoin(player, r != null);
+        Server.broadcastPlayerJoin(player, r != null);
         if (r == null) {
             LocalGateImpl gate = Gates.findGateForPortal(player.getLocation());
             if (gate != null)
@@ -362,8 +361,7 @@ public final class PlayerListenerImpl implements Listener {
         Player player = event.getPlayer();
         ReservationImpl r = ReservationImpl.get(player);
 
-        for (Server server : Servers.getAll())
-            server.sendPlayerQuit(player, r != null);
+        Server.broadcastPlayerQuit(player, r != null);
         if (r != null)
             event.setQuitMessage(null);
     }
@@ -373,8 +371,7 @@ public final class PlayerListenerImpl implements Listener {
         Player player = event.getPlayer();
         ReservationImpl r = ReservationImpl.get(player);
 
-        for (Server server : Servers.getAll())
-            server.sendPlayerKick(player, r != null);
+        Server.broadcastPlayerKick(player, r != null);
         if (r != null)
             event.setLeaveMessage(null);
     }
@@ -382,8 +379,7 @@ public final class PlayerListenerImpl implements Listener {
     @EventHandler(priority = EventPriority.NORMAL)
     public void onPlayerDeath(PlayerDeathEvent event) {
         Player player = (Player)event.getEntity();
-        for (Server server : Servers.getAll())
-            server.sendPlayerDeath(player);
+        Server.broadcastPlayerDeath(player);
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
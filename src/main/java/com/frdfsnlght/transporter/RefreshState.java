@@ -0,0 +1,157 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+/**
+ * A versioned copy of the worlds, players and gates sent in a refreshData
+ * message.
+ * <p>
+ * The sending side keeps the last state it sent to each server and the
+ * receiving side keeps the last state it received, so later refreshes only
+ * need to carry the entries that changed.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class RefreshState {
+
+    // identifies this run of the plugin so a peer never applies a delta based on a previous run
+    static final long LOCAL_ID = new Random().nextLong();
+
+    // builds the state of the local server
+    static RefreshState capture() {
+        RefreshState state = new RefreshState(LOCAL_ID, 0);
+        for (World world : Global.plugin.getServer().getWorlds())
+            state.worlds.add(world.getName());
+        for (Player player : Global.plugin.getServer().getOnlinePlayers()) {
+            TypeMap msg = new TypeMap();
+            msg.put("name", player.getName());
+            msg.put("displayName", player.getDisplayName());
+            msg.put("worldName", player.getWorld().getName());
+            msg.put("prefix", Chat.getPrefix(player));
+            msg.put("suffix", Chat.getSuffix(player));
+            state.players.put(player.getName(), msg);
+        }
+        for (LocalGateImpl gate : Gates.getLocalGates()) {
+            TypeMap gm = new TypeMap();
+            gm.put("type", gate.getType().toString());
+            gm.put("name", gate.getLocalName());
+            gm.put("hidden", gate.getHidden());
+            state.gates.put(gate.getLocalName(), gm);
+        }
+        return state;
+    }
+
+    // builds the state from a full refreshData message
+    static RefreshState fromFull(TypeMap message) throws ServerException {
+        RefreshState state = new RefreshState(message.getLong("syncId", 0), message.getLong("version", 0));
+        List<String> worlds = message.getStringList("worlds");
+        if (worlds == null)
+            throw new ServerException("world list required");
+        state.worlds.addAll(worlds);
+        List<TypeMap> players = message.getMapList("players");
+        if (players == null)
+            throw new ServerException("player list required");
+        for (TypeMap msg : players)
+            state.players.put(msg.getString("name"), msg);
+        List<TypeMap> gates = message.getMapList("gates");
+        if (gates == null)
+            throw new ServerException("gate list required");
+        for (TypeMap gm : gates)
+            state.gates.put(gm.getString("name"), gm);
+        return state;
+    }
+
+    final long id;
+    long version;
+    final Set<String> worlds = new LinkedHashSet<String>();
+    final Map<String,TypeMap> players = new HashMap<String,TypeMap>();
+    final Map<String,TypeMap> gates = new HashMap<String,TypeMap>();
+
+    private RefreshState(long id, long version) {
+        this.id = id;
+        this.version = version;
+    }
+
+    void putFull(TypeMap out) {
+        out.put("syncId", id);
+        out.put("version", version);
+        out.put("worlds", new ArrayList<String>(worlds));
+        out.put("players", new ArrayList<TypeMap>(players.values()));
+        out.put("gates", new ArrayList<TypeMap>(gates.values()));
+    }
+
+    // adds only what changed since the base state
+    void putDelta(RefreshState base, TypeMap out) {
+        out.put("syncId", id);
+        out.put("version", version);
+        out.put("baseVersion", base.version);
+
+        List<String> added = new ArrayList<String>();
+        for (String world : worlds)
+            if (! base.worlds.contains(world)) added.add(world);
+        List<String> removed = new ArrayList<String>();
+        for (String world : base.worlds)
+            if (! worlds.contains(world)) removed.add(world);
+        out.put("worlds", added);
+        out.put("worldsRemoved", removed);
+
+        putChanges(players, base.players, "players", "playersRemoved", out);
+        putChanges(gates, base.gates, "gates", "gatesRemoved", out);
+    }
+
+    private static void putChanges(Map<String,TypeMap> current, Map<String,TypeMap> base, String changedKey, String removedKey, TypeMap out) {
+        List<TypeMap> changed = new ArrayList<TypeMap>();
+        for (Map.Entry<String,TypeMap> e : current.entrySet())
+            if (! e.getValue().equals(base.get(e.getKey()))) changed.add(e.getValue());
+        List<String> removed = new ArrayList<String>();
+        for (String name : base.keySet())
+            if (! current.containsKey(name)) removed.add(name);
+        out.put(changedKey, changed);
+        out.put(removedKey, removed);
+    }
+
+    // applies a delta message, the caller has already checked the base version
+    void applyDelta(TypeMap message) {
+        version = message.getLong("version");
+        List<String> names = message.getStringList("worlds");
+        if (names != null) worlds.addAll(names);
+        names = message.getStringList("worldsRemoved");
+        if (names != null) worlds.removeAll(names);
+        applyChanges(players, message.getMapList("players"), message.getStringList("playersRemoved"));
+        applyChanges(gates, message.getMapList("gates"), message.getStringList("gatesRemoved"));
+    }
+
+    private static void applyChanges(Map<String,TypeMap> map, List<TypeMap> changed, List<String> removed) {
+        if (changed != null)
+            for (TypeMap m : changed)
+                map.put(m.getString("name"), m);
+        if (removed != null)
+            for (String name : removed)
+                map.remove(name);
+    }
+
+}
@@ -16,7 +16,7 @@
 package com.frdfsnlght.transporter;
 
 import com.frdfsnlght.transporter.api.Callback;
-import com.frdfsnlght.transporter.api.RemoteException;
+import com.frdfsnlght.transporter.api.RemoteFuture;
 import com.frdfsnlght.transporter.api.RemoteLocation;
 import com.frdfsnlght.transporter.api.RemotePlayer;
 import com.frdfsnlght.transporter.api.RemoteServer;
@@ -106,55 +106,43 @@ public final class RemotePlayerImpl implements RemotePlayer {
     }
 
     @Override
-    public void getRemoteLocation(final Callback<RemoteLocation> cb) {
-        TypeMap args = new TypeMap();
-        args.put("player", name);
-        server.sendAPIRequest(new APICallback<TypeMap>() {
+    public void getRemoteLocation(Callback<RemoteLocation> cb) {
+        getRemoteLocation().whenComplete(cb);
+    }
+
+    @Override
+    public RemoteFuture<RemoteLocation> getRemoteLocation() {
+        return server.sendAPIRequest("player", "getLocation", createArgs()).thenApply(new RemoteFuture.Function<TypeMap,RemoteLocation>() {
             @Override
-            public void onSuccess(TypeMap m) {
+            public RemoteLocation apply(TypeMap m) {
                 TypeMap locMsg = m.getMap("result");
-                RemoteLocation loc = new RemoteLocation(server, server.getRemoteWorld(locMsg.getString("world")), locMsg.getDouble("x"), locMsg.getDouble("y"), locMsg.getDouble("z"));
-                cb.onSuccess(loc);
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                cb.onFailure(re);
+                return new RemoteLocation(server, server.getRemoteWorld(locMsg.getString("world")), locMsg.getDouble("x"), locMsg.getDouble("y"), locMsg.getDouble("z"));
             }
-        }, "player", "getLocation", args);
+        });
     }
 
     @Override
-    public void sendMessage(final Callback<Void> cb, String msg) {
-        TypeMap args = new TypeMap();
-        args.put("player", name);
+    public void sendMessage(Callback<Void> cb, String msg) {
+        sendMessage(msg).whenComplete(cb);
+    }
+
+    @Override
+    public RemoteFuture<Void> sendMessage(String msg) {
+        TypeMap args = createArgs();
         args.put("message", msg);
-        server.sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(null);
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "player", "sendMessage", args);
+        return server.sendAPIRequest("player", "sendMessage", args).thenApply(APIBackend.VOID_RESULT);
     }
 
     @Override
-    public void sendRawMessage(final Callback<Void> cb, String msg) {
-        TypeMap args = new TypeMap();
-        args.put("player", name);
+    public void sendRawMessage(Callback<Void> cb, String msg) {
+        sendRawMessage(msg).whenComplete(cb);
+    }
+
+    @Override
+    public RemoteFuture<Void> sendRawMessage(String msg) {
+        TypeMap args = createArgs();
         args.put("message", msg);
-        server.sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(null);
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "player", "sendRawMessage", args);
+        return server.sendAPIRequest("player", "sendRawMessage", args).thenApply(APIBackend.VOID_RESULT);
     }
 
     @Override
@@ -162,4 +150,10 @@ public final class RemotePlayerImpl implements RemotePlayer {
         server.sendPrivateMessage(fromPlayer, this, message);
     }
 
+    private TypeMap createArgs() {
+        TypeMap args = new TypeMap();
+        args.put("player", name);
+        return args;
+    }
+
 }
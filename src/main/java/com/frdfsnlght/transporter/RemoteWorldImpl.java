@@ -16,7 +16,7 @@
 package com.frdfsnlght.transporter;
 
 import com.frdfsnlght.transporter.api.Callback;
-import com.frdfsnlght.transporter.api.RemoteException;
+import com.frdfsnlght.transporter.api.RemoteFuture;
 import com.frdfsnlght.transporter.api.RemoteServer;
 import com.frdfsnlght.transporter.api.RemoteWorld;
 import org.bukkit.Difficulty;
@@ -48,83 +48,59 @@ public final class RemoteWorldImpl implements RemoteWorld {
     }
 
     @Override
-    public void getDifficulty(final Callback<Difficulty> cb) {
-        TypeMap args = new TypeMap();
-        args.put("world", name);
-        server.sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(Utils.valueOf(Difficulty.class, m.getString("result")));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "world", "getDifficulty", args);
+    public void getDifficulty(Callback<Difficulty> cb) {
+        getDifficulty().whenComplete(cb);
     }
 
     @Override
-    public void getEnvironment(final Callback<Environment> cb) {
-        TypeMap args = new TypeMap();
-        args.put("world", name);
-        server.sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(Utils.valueOf(Environment.class, m.getString("result")));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "world", "getEnvironment", args);
+    public RemoteFuture<Difficulty> getDifficulty() {
+        return server.sendAPIRequest("world", "getDifficulty", createArgs()).thenApply(APIBackend.enumResult(Difficulty.class));
     }
 
     @Override
-    public void getFullTime(final Callback<Long> cb) {
-        TypeMap args = new TypeMap();
-        args.put("world", name);
-        server.sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(m.getLong("result"));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "world", "getFullTime", args);
+    public void getEnvironment(Callback<Environment> cb) {
+        getEnvironment().whenComplete(cb);
     }
 
     @Override
-    public void getSeed(final Callback<Long> cb) {
-        TypeMap args = new TypeMap();
-        args.put("world", name);
-        server.sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(m.getLong("result"));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "world", "getSeed", args);
+    public RemoteFuture<Environment> getEnvironment() {
+        return server.sendAPIRequest("world", "getEnvironment", createArgs()).thenApply(APIBackend.enumResult(Environment.class));
+    }
+
+    @Override
+    public void getFullTime(Callback<Long> cb) {
+        getFullTime().whenComplete(cb);
     }
 
     @Override
-    public void getTime(final Callback<Long> cb) {
+    public RemoteFuture<Long> getFullTime() {
+        return server.sendAPIRequest("world", "getFullTime", createArgs()).thenApply(APIBackend.LONG_RESULT);
+    }
+
+    @Override
+    public void getSeed(Callback<Long> cb) {
+        getSeed().whenComplete(cb);
+    }
+
+    @Override
+    public RemoteFuture<Long> getSeed() {
+        return server.sendAPIRequest("world", "getSeed", createArgs()).thenApply(APIBackend.LONG_RESULT);
+    }
+
+    @Override
+    public void getTime(Callback<Long> cb) {
+        getTime().whenComplete(cb);
+    }
+
+    @Override
+    public RemoteFuture<Long> getTime() {
+        return server.sendAPIRequest("world", "getTime", createArgs()).thenApply(APIBackend.LONG_RESULT);
+    }
+
+    private TypeMap createArgs() {
         TypeMap args = new TypeMap();
         args.put("world", name);
-        server.sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(m.getLong("result"));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "world", "getTime", args);
+        return args;
     }
 
 }
@@ -21,6 +21,8 @@ import com.frdfsnlght.transporter.api.Reservation;
 import com.frdfsnlght.transporter.api.ReservationException;
 import com.frdfsnlght.transporter.api.event.EntityArriveEvent;
 import com.frdfsnlght.transporter.api.event.EntityDepartEvent;
+import com.frdfsnlght.transporter.net.Network;
+import com.frdfsnlght.transporter.net.TimerWheel;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -78,6 +80,10 @@ public final class ReservationImpl implements Reservation {
     }
 
     private static boolean remove(ReservationImpl r) {
+        if (r.timeout != null) {
+            r.timeout.cancel();
+            r.timeout = null;
+        }
         if (reservations.remove(r.localId) != null) {
             Utils.debug("removed reservation %s", r.localId);
             return true;
@@ -198,6 +204,9 @@ public final class ReservationImpl implements Reservation {
 
     private boolean createdEntity = false;
 
+    // cancelled when the reservation is removed
+    private TimerWheel.Timeout timeout = null;
+
     // player stepping into gate
     public ReservationImpl(Player player, LocalGateImpl fromGate) throws ReservationException {
         addGateLock(player);
@@ -527,13 +536,13 @@ public final class ReservationImpl implements Reservation {
 
                     // setup delayed task to remove the reservation on this side if it doesn't work out
                     final ReservationImpl me = this;
-                    Utils.fireDelayed(new Runnable() {
+                    timeout = Network.scheduleSync(new Runnable() {
                         @Override
                         public void run() {
                             if (! remove(me)) return;
                             Utils.warning("reservation for %s to %s timed out", getTraveler(), getDestination());
                         }
-                    }, Config.getArrivalWindow());
+                    }, Config.getArrivalWindow(), WorkQueue.Priority.RESERVATION);
 
                 } catch (ServerException e) {
                     Utils.severe(e, "reservation send for %s to %s failed:", getTraveler(), getDestination());
@@ -580,7 +589,7 @@ public final class ReservationImpl implements Reservation {
             } else {
                 // set up a delayed task to cancel the arrival if they never arrive
                 final ReservationImpl res = this;
-                Utils.fireDelayed(new Runnable() {
+                timeout = Network.scheduleSync(new Runnable() {
                     @Override
                     public void run() {
                         if (! remove(res)) return;
@@ -591,7 +600,7 @@ public final class ReservationImpl implements Reservation {
                             Utils.severe(e, "send reservation timeout for %s to %s to %s failed:", getTraveler(), getDestination(), fromServer.getName());
                         }
                     }
-                }, Config.getArrivalWindow());
+                }, Config.getArrivalWindow(), WorkQueue.Priority.RESERVATION);
             }
 
         } catch (ReservationException e) {
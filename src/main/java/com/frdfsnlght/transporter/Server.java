@@ -19,6 +19,7 @@ import com.frdfsnlght.transporter.api.Callback;
 import com.frdfsnlght.transporter.api.GateException;
 import com.frdfsnlght.transporter.api.GateType;
 import com.frdfsnlght.transporter.api.RemoteException;
+import com.frdfsnlght.transporter.api.RemoteFuture;
 import com.frdfsnlght.transporter.api.RemoteGate;
 import com.frdfsnlght.transporter.api.RemotePlayer;
 import com.frdfsnlght.transporter.api.RemoteServer;
@@ -36,19 +37,24 @@ import com.frdfsnlght.transporter.api.event.RemotePlayerQuitEvent;
 import com.frdfsnlght.transporter.api.event.RemoteServerConnectEvent;
 import com.frdfsnlght.transporter.api.event.RemoteServerDisconnectEvent;
 import com.frdfsnlght.transporter.net.Connection;
+import com.frdfsnlght.transporter.net.EncodedMessage;
 import com.frdfsnlght.transporter.net.Network;
-import java.lang.reflect.Method;
+import com.frdfsnlght.transporter.net.SessionCipher;
+import com.frdfsnlght.transporter.net.TimerWheel;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import org.bukkit.ChatColor;
@@ -71,7 +77,7 @@ public final class Server implements OptionsListener, RemoteServer {
     private static final int RECV_KEEPALIVE_INTERVAL = 90000;
 
     private static final Set<String> OPTIONS = new HashSet<String>();
-    private static final Map<String,Method> MESSAGE_HANDLERS = new HashMap<String,Method>();
+    private static final Map<String,MessageHandler> MESSAGE_HANDLERS = new HashMap<String,MessageHandler>();
 
     static {
         OPTIONS.add("pluginAddress");
@@ -89,48 +95,242 @@ public final class Server implements OptionsListener, RemoteServer {
         OPTIONS.add("playerListFormat");
         OPTIONS.add("mExecTarget");
         OPTIONS.add("allowRemoteCommands");
+        OPTIONS.add("encryption");
+        OPTIONS.add("relay");
+        OPTIONS.add("relayAllowRemoteCommands");
 
-        MESSAGE_HANDLERS.put("nop", null);
-        MESSAGE_HANDLERS.put("error", null);
-        addMessageHandler("ping");
-        addMessageHandler("pong");
-        addMessageHandler("refresh");
-        addMessageHandler("refreshData");
-        addMessageHandler("gateCreated");
-        addMessageHandler("gateAdded");
-        addMessageHandler("gateRenamed");
-        addMessageHandler("gateRemoved");
-        addMessageHandler("gateDestroyed");
-        addMessageHandler("gateAttach");
-        addMessageHandler("gateDetach");
-        addMessageHandler("reservation");
-        addMessageHandler("reservationApproved");
-        addMessageHandler("reservationDenied");
-        addMessageHandler("reservationArrived");
-        addMessageHandler("reservationTimeout");
-        addMessageHandler("linkAdd");
-        addMessageHandler("linkAddComplete");
-        addMessageHandler("linkRemove");
-        addMessageHandler("linkRemoveComplete");
-        addMessageHandler("playerChangeWorld");
-        addMessageHandler("playerJoin");
-        addMessageHandler("playerQuit");
-        addMessageHandler("playerKick");
-        addMessageHandler("playerDeath");
-        addMessageHandler("chat");
-        addMessageHandler("privateMessage");
-        addMessageHandler("apiRequest");
-        addMessageHandler("apiResult");
-        addMessageHandler("worldLoad");
-        addMessageHandler("worldUnload");
-    }
-
-    private static void addMessageHandler(String name) {
-        try {
-            String mname = "receive" + name.substring(0, 1).toUpperCase() + name.substring(1);
-            MESSAGE_HANDLERS.put(name, Server.class.getDeclaredMethod(mname, TypeMap.class));
-        } catch (NoSuchMethodException nsme) {
-            nsme.printStackTrace(System.err);
+        for (MessageHandler handler : MessageHandler.values())
+            MESSAGE_HANDLERS.put(handler.command, handler);
+    }
+
+    // Handlers for received messages, one per command.
+    // Counters are only updated on the main thread.
+    private enum MessageHandler {
+
+        NOP("nop") {
+            @Override
+            void receive(Server server, TypeMap message) {}
+        },
+        ERROR("error") {
+            @Override
+            void receive(Server server, TypeMap message) {}
+        },
+        PING("ping") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receivePing(message);
+            }
+        },
+        PONG("pong") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receivePong(message);
+            }
+        },
+        REFRESH("refresh") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveRefresh(message);
+            }
+        },
+        REFRESH_DATA("refreshData") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveRefreshData(message);
+            }
+        },
+        GATE_CREATED("gateCreated") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveGateCreated(message);
+            }
+        },
+        GATE_ADDED("gateAdded") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveGateAdded(message);
+            }
+        },
+        GATE_RENAMED("gateRenamed") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveGateRenamed(message);
+            }
+        },
+        GATE_REMOVED("gateRemoved") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveGateRemoved(message);
+            }
+        },
+        GATE_DESTROYED("gateDestroyed") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveGateDestroyed(message);
+            }
+        },
+        GATE_ATTACH("gateAttach") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveGateAttach(message);
+            }
+        },
+        GATE_DETACH("gateDetach") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveGateDetach(message);
+            }
+        },
+        RESERVATION("reservation", WorkQueue.Priority.RESERVATION) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveReservation(message);
+            }
+        },
+        RESERVATION_APPROVED("reservationApproved", WorkQueue.Priority.RESERVATION) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveReservationApproved(message);
+            }
+        },
+        RESERVATION_DENIED("reservationDenied", WorkQueue.Priority.RESERVATION) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveReservationDenied(message);
+            }
+        },
+        RESERVATION_ARRIVED("reservationArrived", WorkQueue.Priority.RESERVATION) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveReservationArrived(message);
+            }
+        },
+        RESERVATION_TIMEOUT("reservationTimeout", WorkQueue.Priority.RESERVATION) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveReservationTimeout(message);
+            }
+        },
+        LINK_ADD("linkAdd") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveLinkAdd(message);
+            }
+        },
+        LINK_ADD_COMPLETE("linkAddComplete") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveLinkAddComplete(message);
+            }
+        },
+        LINK_REMOVE("linkRemove") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveLinkRemove(message);
+            }
+        },
+        LINK_REMOVE_COMPLETE("linkRemoveComplete") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveLinkRemoveComplete(message);
+            }
+        },
+        PLAYER_CHANGE_WORLD("playerChangeWorld", WorkQueue.Priority.PLAYER_LIST) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receivePlayerChangeWorld(message);
+            }
+        },
+        PLAYER_JOIN("playerJoin", WorkQueue.Priority.PLAYER_LIST) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receivePlayerJoin(message);
+            }
+        },
+        PLAYER_QUIT("playerQuit", WorkQueue.Priority.PLAYER_LIST) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receivePlayerQuit(message);
+            }
+        },
+        PLAYER_KICK("playerKick", WorkQueue.Priority.PLAYER_LIST) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receivePlayerKick(message);
+            }
+        },
+        PLAYER_DEATH("playerDeath", WorkQueue.Priority.PLAYER_LIST) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receivePlayerDeath(message);
+            }
+        },
+        CHAT("chat", WorkQueue.Priority.CHAT) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveChat(message);
+            }
+        },
+        PRIVATE_MESSAGE("privateMessage", WorkQueue.Priority.CHAT) {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receivePrivateMessage(message);
+            }
+        },
+        API_REQUEST("apiRequest") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveApiRequest(message);
+            }
+        },
+        API_RESULT("apiResult") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveApiResult(message);
+            }
+        },
+        WORLD_LOAD("worldLoad") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveWorldLoad(message);
+            }
+        },
+        WORLD_UNLOAD("worldUnload") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveWorldUnload(message);
+            }
+        },
+        RELAY_MEMBERS("relayMembers") {
+            @Override
+            void receive(Server server, TypeMap message) throws TransporterException {
+                server.receiveRelayMembers(message);
+            }
+        };
+
+        final String command;
+        final WorkQueue.Priority priority;
+        long count = 0;
+        long time = 0;
+
+        MessageHandler(String command) {
+            this(command, WorkQueue.Priority.DEFAULT);
+        }
+
+        MessageHandler(String command, WorkQueue.Priority priority) {
+            this.command = command;
+            this.priority = priority;
+        }
+
+        abstract void receive(Server server, TypeMap message) throws TransporterException;
+
+    }
+
+    public static void dumpMessageStats(Context ctx) {
+        for (MessageHandler handler : MessageHandler.values()) {
+            if (handler.count == 0) continue;
+            ctx.send("%-22s %8d received, %8d us total, %6d us average",
+                    handler.command, handler.count, handler.time / 1000, handler.time / handler.count / 1000);
         }
     }
 
@@ -192,11 +392,40 @@ public final class Server implements OptionsListener, RemoteServer {
     private boolean mExecTarget = true;
     private boolean allowRemoteCommands = false;
 
+    // The encryption to use on the connection: legacy, aes-gcm, or chacha20-poly1305.
+    // Anything other than legacy falls back to legacy when the remote side doesn't support it.
+    private String encryption = SessionCipher.AES_GCM;
+
+    // Should servers announced by the remote side, when it's a relay hub, be
+    // reached through it?
+    private boolean relay = false;
+
+    // Should servers reached through this one be allowed to run commands here?
+    // Kept apart from allowRemoteCommands so trusting the hub doesn't trust everyone behind it.
+    private boolean relayAllowRemoteCommands = false;
+
+    // the hub this server is reached through, or null for a direct link
+    private Server relayVia = null;
+
+    // the host the hub reaches a relayed server at, used to expand a "*" publicAddress
+    private String relayAddress = null;
+
+    // servers reached through this one, replaced as a whole so it can be read from any thread
+    private volatile Map<String,Server> relayedServers = new HashMap<String,Server>();
+
     private Connection connection = null;
     private boolean allowReconnect = true;
-    private int reconnectTask = -1;
+
+    // messages waiting to be sent, drained in order by the network layer
+    private final Queue<EncodedMessage> outbound = new ConcurrentLinkedQueue<EncodedMessage>();
+    private final AtomicBoolean outboundPending = new AtomicBoolean(false);
+    private volatile TimerWheel.Timeout reconnectTimeout = null;
+    // only the task that's still in here may reschedule itself
+    private final AtomicReference<TimerWheel.Timeout> keepAliveTimeout = new AtomicReference<TimerWheel.Timeout>();
     private boolean fastReconnect = false;
     private boolean connected = false;
+    // bumped on every connect so stale disconnect cleanup can tell it's been superseded
+    private volatile int connectionGeneration = 0;
     private String remoteVersion = null;
     private List<AddressMatch> remotePublicAddressMatches = null;
     private String remotePublicAddress = null;
@@ -213,9 +442,15 @@ public final class Server implements OptionsListener, RemoteServer {
     private Map<String,RemoteGateImpl> remoteGates = new HashMap<String,RemoteGateImpl>();
 
     private long nextRequestId = 1;
-    private Map<Long,Callback<TypeMap>> requests = new HashMap<Long,Callback<TypeMap>>();
+    private Map<Long,APICallback<TypeMap>> requests = new HashMap<Long,APICallback<TypeMap>>();
+
+    // the worlds, players and gates last sent to and received from the remote side
+    private RefreshState sentState = null;
+    private RefreshState receivedState = null;
 
-    // TODO: add a way to expire old API requests
+    // API requests held until sendBatch
+    private int batchDepth = 0;
+    private List<TypeMap> batchCalls = null;
 
     public Server(String name, String plgAddr, String key) throws ServerException {
         try {
@@ -248,11 +483,37 @@ public final class Server implements OptionsListener, RemoteServer {
             setPlayerListFormat(map.getString("playerListFormat", "%italic%%player%"));
             setMExecTarget(map.getBoolean("mExecTarget", true));
             setAllowRemoteCommands(map.getBoolean("allowRemoteCommands", false));
+            setEncryption(map.getString("encryption", SessionCipher.AES_GCM));
+            setRelay(map.getBoolean("relay", false));
+            setRelayAllowRemoteCommands(map.getBoolean("relayAllowRemoteCommands", false));
         } catch (IllegalArgumentException e) {
             throw new ServerException(e.getMessage());
         }
     }
 
+    // a server reached through a relay hub, it shares the hub's settings
+    private Server(String name, Server hub) throws ServerException {
+        setName(name);
+        relayVia = hub;
+        pluginAddress = hub.pluginAddress;
+        publicAddress = hub.publicAddress;
+        normalizedPublicAddress = hub.normalizedPublicAddress;
+        privateAddress = hub.privateAddress;
+        normalizedPrivateAddress = hub.normalizedPrivateAddress;
+        chatFormat = hub.chatFormat;
+        pmFormat = hub.pmFormat;
+        sendChat = hub.sendChat;
+        receiveChat = hub.receiveChat;
+        sendChatFilter = hub.sendChatFilter;
+        sendChatFormatFilter = hub.sendChatFormatFilter;
+        receiveChatFilter = hub.receiveChatFilter;
+        announcePlayers = hub.announcePlayers;
+        playerListFormat = hub.playerListFormat;
+        mExecTarget = hub.mExecTarget;
+        allowRemoteCommands = hub.relayAllowRemoteCommands;
+        enabled = true;
+    }
+
     /* RemoteServer interface */
 
     @Override
@@ -291,40 +552,37 @@ public final class Server implements OptionsListener, RemoteServer {
     }
 
     @Override
-    public void broadcast(final Callback<Integer> cb, String message, String permission) {
+    public void broadcast(Callback<Integer> cb, String message, String permission) {
+        broadcast(message, permission).whenComplete(cb);
+    }
+
+    @Override
+    public RemoteFuture<Integer> broadcast(String message, String permission) {
         TypeMap args = new TypeMap();
         args.put("message", message);
         args.put("permission", permission);
-        sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(m.getInt("result"));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "server", "broadcast", args);
+        return sendAPIRequest("server", "broadcast", args).thenApply(APIBackend.INT_RESULT);
     }
 
     @Override
-    public void broadcastMessage(final Callback<Integer> cb, String message) {
+    public void broadcastMessage(Callback<Integer> cb, String message) {
+        broadcastMessage(message).whenComplete(cb);
+    }
+
+    @Override
+    public RemoteFuture<Integer> broadcastMessage(String message) {
         TypeMap args = new TypeMap();
         args.put("message", message);
-        sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(m.getInt("result"));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "server", "broadcastMessage", args);
+        return sendAPIRequest("server", "broadcastMessage", args).thenApply(APIBackend.INT_RESULT);
+    }
+
+    @Override
+    public void dispatchCommand(Callback<Boolean> cb, CommandSender sender, String commandLine) {
+        dispatchCommand(sender, commandLine).whenComplete(cb);
     }
 
     @Override
-    public void dispatchCommand(final Callback<Boolean> cb, CommandSender sender, String commandLine) {
+    public RemoteFuture<Boolean> dispatchCommand(CommandSender sender, String commandLine) {
         TypeMap args = new TypeMap();
         if ((sender instanceof ConsoleCommandSender) || (sender instanceof RemoteConsoleCommandSender))
             args.put("sender", "console");
@@ -333,76 +591,85 @@ public final class Server implements OptionsListener, RemoteServer {
             args.put("name", sender.getName());
         }
         args.put("commandLine", commandLine);
-        sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(m.getBoolean("result"));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "server", "dispatchCommand", args);
+        return sendAPIRequest("server", "dispatchCommand", args).thenApply(APIBackend.BOOLEAN_RESULT);
     }
 
     @Override
-    public void getDefaultGameMode(final Callback<GameMode> cb) {
-        TypeMap args = new TypeMap();
-        sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(Utils.valueOf(GameMode.class, m.getString("result")));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "server", "getDefaultGameMode", args);
+    public void getDefaultGameMode(Callback<GameMode> cb) {
+        getDefaultGameMode().whenComplete(cb);
     }
 
     @Override
-    public void getName(final Callback<String> cb) {
-        TypeMap args = new TypeMap();
-        sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(m.getString("result"));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "server", "getName", args);
+    public RemoteFuture<GameMode> getDefaultGameMode() {
+        return sendAPIRequest("server", "getDefaultGameMode", new TypeMap()).thenApply(APIBackend.enumResult(GameMode.class));
     }
 
     @Override
-    public void getServerId(final Callback<String> cb) {
-        TypeMap args = new TypeMap();
-        sendAPIRequest(new APICallback<TypeMap>() {
-            @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(m.getString("result"));
-            }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
-            }
-        }, "server", "getServerId", args);
+    public void getName(Callback<String> cb) {
+        getServerName().whenComplete(cb);
     }
 
     @Override
-    public void getVersion(final Callback<String> cb) {
-        TypeMap args = new TypeMap();
-        sendAPIRequest(new APICallback<TypeMap>() {
+    public RemoteFuture<String> getServerName() {
+        return sendAPIRequest("server", "getName", new TypeMap()).thenApply(APIBackend.STRING_RESULT);
+    }
+
+    @Override
+    public void getServerId(Callback<String> cb) {
+        getServerId().whenComplete(cb);
+    }
+
+    @Override
+    public RemoteFuture<String> getServerId() {
+        return sendAPIRequest("server", "getServerId", new TypeMap()).thenApply(APIBackend.STRING_RESULT);
+    }
+
+    @Override
+    public void getVersion(Callback<String> cb) {
+        getVersion().whenComplete(cb);
+    }
+
+    @Override
+    public RemoteFuture<String> getVersion() {
+        return sendAPIRequest("server", "getVersion", new TypeMap()).thenApply(APIBackend.STRING_RESULT);
+    }
+
+    @Override
+    public void startBatch() {
+        if (batchDepth++ > 0) return;
+        final List<TypeMap> calls = new ArrayList<TypeMap>();
+        batchCalls = calls;
+        // runs after the current task, so a batch that was never sent can't hold calls forever
+        Utils.fire(new Runnable() {
             @Override
-            public void onSuccess(TypeMap m) {
-                if (cb != null) cb.onSuccess(m.getString("result"));
+            public void run() {
+                if (batchCalls != calls) return;
+                Utils.warning("batch of API calls to '%s' was not sent, sending it now", getName());
+                batchDepth = 1;
+                sendBatch();
             }
-            @Override
-            public void onFailure(RemoteException re) {
-                if (cb != null) cb.onFailure(re);
+        });
+    }
+
+    @Override
+    public void sendBatch() {
+        if (batchDepth == 0) return;
+        if (--batchDepth > 0) return;
+        List<TypeMap> calls = batchCalls;
+        batchCalls = null;
+        if (calls.isEmpty()) return;
+        if ((calls.size() == 1) || (! supportsAPIBatch())) {
+            for (TypeMap call : calls) {
+                TypeMap out = createMessage("apiRequest");
+                out.putAll(call);
+                sendMessage(out);
             }
-        }, "server", "getVersion", args);
+        } else {
+            TypeMap out = createMessage("apiRequest");
+            out.put("calls", calls);
+            Utils.debug("api batch of %d requests to %s", calls.size(), name);
+            sendMessage(out);
+        }
     }
 
     /* End RemoteServer interface */
@@ -423,7 +690,10 @@ public final class Server implements OptionsListener, RemoteServer {
         if (addr == null)
             throw new IllegalArgumentException("pluginAddress is required");
         try {
-            Network.makeInetSocketAddress(addr, "localhost", Global.DEFAULT_PLUGIN_PORT, false);
+            if (Network.isLocalAddress(addr))
+                Network.checkLocalAddress(addr);
+            else
+                Network.makeInetSocketAddress(addr, "localhost", Global.DEFAULT_PLUGIN_PORT, false);
         } catch (Exception e) {
             throw new IllegalArgumentException("pluginAddress: " + e.getMessage());
         }
@@ -442,6 +712,7 @@ public final class Server implements OptionsListener, RemoteServer {
         if ((key == null) || key.isEmpty())
             throw new IllegalArgumentException("key is required");
         this.key = key;
+        Servers.rebuildKeyIndex();
     }
 
     @Override
@@ -625,6 +896,39 @@ public final class Server implements OptionsListener, RemoteServer {
         allowRemoteCommands = b;
     }
 
+    public String getEncryption() {
+        return encryption;
+    }
+
+    public void setEncryption(String s) {
+        if ((s == null) || s.isEmpty() || s.equals("*")) s = SessionCipher.AES_GCM;
+        if (s.equals("-")) s = SessionCipher.LEGACY;
+        s = s.toLowerCase();
+        if (! SessionCipher.isValidName(s))
+            throw new IllegalArgumentException("encryption must be legacy, aes-gcm, or chacha20-poly1305");
+        encryption = s;
+    }
+
+    public boolean getRelay() {
+        return relay;
+    }
+
+    public void setRelay(boolean b) {
+        relay = b;
+        if (! relay)
+            dropRelayedServers();
+    }
+
+    public boolean getRelayAllowRemoteCommands() {
+        return relayAllowRemoteCommands;
+    }
+
+    public void setRelayAllowRemoteCommands(boolean b) {
+        relayAllowRemoteCommands = b;
+        for (Server server : relayedServers.values())
+            server.allowRemoteCommands = b;
+    }
+
     public void getOptions(Context ctx, String name) throws OptionsException, PermissionsException {
         options.getOptions(ctx, name);
     }
@@ -684,7 +988,8 @@ public final class Server implements OptionsListener, RemoteServer {
     public String getReconnectAddressForClient(InetSocketAddress clientAddress) {
         String clientAddrStr = clientAddress.getAddress().getHostAddress();
 
-        if (Network.getUsePrivateAddress() && (remotePrivateAddress != null)) {
+        if (Network.getUsePrivateAddress() && (remotePrivateAddress != null) &&
+            (connection != null) && (connection.getChannel() != null)) {
             InetSocketAddress remoteAddr = (InetSocketAddress)connection.getChannel().socket().getRemoteSocketAddress();
             if (remoteAddr != null) {
                 if (remoteAddr.getAddress().getHostAddress().equals(clientAddrStr)) {
@@ -695,6 +1000,11 @@ public final class Server implements OptionsListener, RemoteServer {
         }
 
         if (remotePublicAddressMatches == null) {
+            // a local server is on this host
+            if (Network.isLocalAddress(pluginAddress)) {
+                InetAddress a = Network.getInterfaceAddress();
+                return ((a == null) ? "localhost" : a.getHostAddress()) + ":" + DEFAULT_MC_PORT;
+            }
             String[] parts = pluginAddress.split(":");
             return parts[0] + ":" + DEFAULT_MC_PORT;
         }
@@ -793,6 +1103,9 @@ public final class Server implements OptionsListener, RemoteServer {
         node.put("playerListFormat", playerListFormat);
         node.put("mExecTarget", mExecTarget);
         node.put("allowRemoteCommands", allowRemoteCommands);
+        node.put("encryption", encryption);
+        node.put("relay", relay);
+        node.put("relayAllowRemoteCommands", relayAllowRemoteCommands);
         return node;
     }
 
@@ -800,7 +1113,38 @@ public final class Server implements OptionsListener, RemoteServer {
         return (connection != null) && connection.isIncoming();
     }
 
+    public boolean isRelayed() {
+        return relayVia != null;
+    }
+
+    public Server getRelayVia() {
+        return relayVia;
+    }
+
+    // the host other servers relayed by us should use for a "*" publicAddress
+    private String getRelayMemberAddress() {
+        if (relayVia != null) return relayAddress;
+        // a server on this host is reached at our own address
+        if (Network.isLocalAddress(pluginAddress)) {
+            InetAddress a = Network.getInterfaceAddress();
+            return (a == null) ? null : a.getHostAddress();
+        }
+        return pluginAddress.split(":")[0];
+    }
+
+    private boolean supportsAPIBatch() {
+        if (relayVia != null) return true;
+        return (connection != null) && connection.supportsAPIBatch();
+    }
+
+    private boolean supportsDeltaRefresh() {
+        if (relayVia != null) return true;
+        return (connection != null) && connection.supportsDeltaRefresh();
+    }
+
     public void connect() {
+        // relayed servers come and go with the hub's announcements
+        if (relayVia != null) return;
         if (isConnectionConnected() || Network.isStopped() || isIncoming()) return;
         allowReconnect = true;
         fastReconnect = false;
@@ -822,19 +1166,21 @@ public final class Server implements OptionsListener, RemoteServer {
     }
 
     public boolean isConnecting() {
-        return (reconnectTask != -1);
+        return (reconnectTimeout != null);
     }
 
     public boolean isConnectionConnected() {
+        if (relayVia != null) return relayVia.isConnectionConnected();
         if (connection == null) return false;
         return connection.isOpen();
     }
 
     private void cancelOutbound() {
-        if (reconnectTask != -1) {
+        TimerWheel.Timeout timeout = reconnectTimeout;
+        if (timeout != null) {
             Utils.info("cancelling outbound connection attempt to server '%s'", getName());
-            Utils.cancelTask(reconnectTask);
-            reconnectTask = -1;
+            timeout.cancel();
+            reconnectTimeout = null;
         }
     }
 
@@ -852,13 +1198,13 @@ public final class Server implements OptionsListener, RemoteServer {
 
             if (! connectionMessagesSuppressed())
                 Utils.info("will attempt to reconnect to '%s' in about %d seconds", getName(), (time / 1000));
-            reconnectTask = Utils.fireDelayed(new Runnable() {
+            reconnectTimeout = Network.scheduleSync(new Runnable() {
                 @Override
                 public void run() {
-                    reconnectTask = -1;
+                    reconnectTimeout = null;
                     connect();
                 }
-            }, time);
+            }, time, WorkQueue.Priority.DEFAULT);
         }
 
     }
@@ -871,34 +1217,78 @@ public final class Server implements OptionsListener, RemoteServer {
     public void refresh() {
         if (! isConnectionConnected())
             connect();
-        else {
-            TypeMap message = createMessage("refresh");
+        else
+            sendRefresh();
+    }
+
+    // called from the network timer thread
+    private void keepAlive(TimerWheel.Timeout self) {
+        // replaced by a reconnect
+        if ((self == null) || (keepAliveTimeout.get() != self)) return;
+        Connection conn = connection;
+        if ((conn == null) || (! conn.isOpen())) return;
+        long now = System.currentTimeMillis();
+        long lastReceived = conn.getLastMessageReceivedTime();
+        if ((now - lastReceived) >= RECV_KEEPALIVE_INTERVAL) {
+            Utils.warning("no keepalive received from server '%s'", name);
+            fastReconnect = true;
+            disconnect(true);
+            return;
+        }
+        if ((now - conn.getLastMessageSentTime()) >= SEND_KEEPALIVE_INTERVAL) {
+            Utils.debug("sending keepalive to '%s'", name);
+            TypeMap message = createMessage("nop");
             sendMessage(message);
         }
+        // wake up when the next keepalive could be due
+        long next = Math.min(conn.getLastMessageSentTime() + SEND_KEEPALIVE_INTERVAL, lastReceived + RECV_KEEPALIVE_INTERVAL) - now;
+        TimerWheel.Timeout timeout = newKeepAlive(Math.max(next, 1000));
+        // a reconnect may have started a new chain while we were running
+        if (! keepAliveTimeout.compareAndSet(self, timeout))
+            timeout.cancel();
     }
 
-    public void checkKeepAlive() {
-        if (! isConnectionConnected()) return;
-        if ((System.currentTimeMillis() - connection.getLastMessageReceivedTime()) < RECV_KEEPALIVE_INTERVAL) return;
-        Utils.warning("no keepalive received from server '%s'", name);
-        fastReconnect = true;
-        disconnect(true);
+    private void scheduleKeepAlive(long delay) {
+        TimerWheel.Timeout old = keepAliveTimeout.getAndSet(newKeepAlive(delay));
+        if (old != null)
+            old.cancel();
+    }
+
+    private TimerWheel.Timeout newKeepAlive(long delay) {
+        final KeepAliveTask task = new KeepAliveTask();
+        task.timeout = Network.schedule(task, delay);
+        return task.timeout;
+    }
+
+    private void cancelKeepAlive() {
+        TimerWheel.Timeout timeout = keepAliveTimeout.getAndSet(null);
+        if (timeout != null)
+            timeout.cancel();
     }
 
+
     // Connection callbacks, called from main network thread.
 
     // outbound connection
     public void onConnected(String version) {
         allowReconnect = true;
         connected = true;
+        connectionGeneration++;
         connectionAttempts = 0;
         remoteVersion = version;
         cancelOutbound();
+        cancelKeepAlive();
+        scheduleKeepAlive(SEND_KEEPALIVE_INTERVAL);
         Utils.info("connected to '%s' (%s), running v%s", getName(), connection.getName(), remoteVersion);
+        final boolean delta = connection.supportsDeltaRefresh();
         Utils.fire(new Runnable() {
             @Override
             public void run() {
-                receiveRefresh(null);
+                // ask for what changed since our last copy, the remote side does the same
+                if (delta)
+                    sendRefresh();
+                else
+                    receiveRefresh(null);
             }
         });
     }
@@ -910,26 +1300,58 @@ public final class Server implements OptionsListener, RemoteServer {
         }
         readyForAPI = false;
         connection = null;
+        cancelKeepAlive();
         if (Network.isStopped()) {
             Gates.removeGatesForServer(this);
             clearRemotePlayers();
             remoteGates.clear();
             remoteWorlds.clear();
+            dropRelayedServers();
         } else {
             reconnect();
-            final Server me = this;
-            Utils.fire(new Runnable() {
-                @Override
-                public void run() {
-                    RemoteServerDisconnectEvent event = new RemoteServerDisconnectEvent(me);
-                    Global.plugin.getServer().getPluginManager().callEvent(event);
-                    Gates.removeGatesForServer(me);
-                    clearRemotePlayers();
-                    remoteGates.clear();
-                    remoteWorlds.clear();
+            fireDisconnected();
+        }
+    }
+
+    private void fireDisconnected() {
+        final Server me = this;
+        final int generation = connectionGeneration;
+        // queued behind anything already received from this server, but skipped
+        // if we've reconnected since, so it can't wipe the new connection's state
+        Utils.fire(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != connectionGeneration) {
+                    Utils.debug("skipping stale disconnect cleanup for '%s'", getName());
+                    return;
                 }
-            });
+                RemoteServerDisconnectEvent event = new RemoteServerDisconnectEvent(me);
+                Global.plugin.getServer().getPluginManager().callEvent(event);
+                Gates.removeGatesForServer(me);
+                clearRemotePlayers();
+                remoteGates.clear();
+                remoteWorlds.clear();
+                dropRelayedServers();
+                Servers.updateRelayRoutes();
+            }
+        }, WorkQueue.Priority.DEFAULT);
+    }
+
+    private void onRelayConnected(String version) {
+        connected = true;
+        connectionGeneration++;
+        remoteVersion = version;
+        Utils.info("connected to '%s' through '%s', running v%s", getName(), relayVia.getName(), remoteVersion);
+        sendRefresh();
+    }
+
+    private void onRelayDisconnected() {
+        if (connected) {
+            Utils.info("disconnected from '%s' through '%s'", getName(), relayVia.getName());
+            connected = false;
         }
+        readyForAPI = false;
+        fireDisconnected();
     }
 
     public void onMessage(final TypeMap message) {
@@ -944,13 +1366,19 @@ public final class Server implements OptionsListener, RemoteServer {
             disconnect(true);
             return;
         }
+        // relayed messages are routed here without waiting for the main thread
+        if (command.equals("relay")) {
+            receiveRelay(message);
+            return;
+        }
         Utils.debug("received command '%s' from %s", command, getName());
+        final MessageHandler handler = MESSAGE_HANDLERS.get(command);
         Utils.fire(new Runnable() {
             @Override
             public void run() {
-                receiveMessage(message, command);
+                receiveMessage(message, command, handler);
             }
-        });
+        }, (handler == null) ? WorkQueue.Priority.DEFAULT : handler.priority);
     }
 
     public boolean canSendChat(String message, String format) {
@@ -976,11 +1404,14 @@ public final class Server implements OptionsListener, RemoteServer {
         receiveRefresh(null);
     }
 
-    public void sendKeepAlive() {
+    // asks the remote side for its refreshData, only what changed if we have a copy of its state
+    private void sendRefresh() {
         if (! isConnectionConnected()) return;
-        if ((System.currentTimeMillis() - connection.getLastMessageSentTime()) < SEND_KEEPALIVE_INTERVAL) return;
-        Utils.debug("sending keepalive to '%s'", name);
-        TypeMap message = createMessage("nop");
+        TypeMap message = createMessage("refresh");
+        if (receivedState != null) {
+            message.put("syncId", receivedState.id);
+            message.put("version", receivedState.version);
+        }
         sendMessage(message);
     }
 
@@ -1001,35 +1432,31 @@ public final class Server implements OptionsListener, RemoteServer {
         sendMessage(message);
     }
 
-    public void sendGateAdded(LocalGateImpl gate) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastGateAdded(LocalGateImpl gate) {
         TypeMap message = createMessage("gateAdded");
         message.put("type", gate.getType().toString());
         message.put("name", gate.getLocalName());
         message.put("hidden", gate.getHidden());
-        sendMessage(message);
+        Network.broadcast(message);
     }
 
-    public void sendGateRenamed(String oldLocalName, String newName) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastGateRenamed(String oldLocalName, String newName) {
         TypeMap message = createMessage("gateRenamed");
         message.put("oldName", oldLocalName);
         message.put("newName", newName);
-        sendMessage(message);
+        Network.broadcast(message);
     }
 
-    public void sendGateRemoved(LocalGateImpl gate) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastGateRemoved(LocalGateImpl gate) {
         TypeMap message = createMessage("gateRemoved");
         message.put("name", gate.getLocalName());
-        sendMessage(message);
+        Network.broadcast(message);
     }
 
-    public void sendGateDestroyed(LocalGateImpl gate) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastGateDestroyed(LocalGateImpl gate) {
         TypeMap message = createMessage("gateDestroyed");
         message.put("name", gate.getLocalName());
-        sendMessage(message);
+        Network.broadcast(message);
     }
 
     public void sendGateAttach(RemoteGateImpl toGate, LocalGateImpl fromGate) {
@@ -1139,18 +1566,16 @@ public final class Server implements OptionsListener, RemoteServer {
         sendMessage(message);
     }
 
-    public void sendPlayerChangeWorld(Player player) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastPlayerChangeWorld(Player player) {
         TypeMap message = createMessage("playerChangeWorld");
         message.put("player", player.getName());
         message.put("world", player.getWorld().getName());
         message.put("prefix", Chat.getPrefix(player));
         message.put("suffix", Chat.getSuffix(player));
-        sendMessage(message);
+        Network.broadcast(message);
     }
 
-    public void sendPlayerJoin(Player player, boolean hasReservation) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastPlayerJoin(Player player, boolean hasReservation) {
         TypeMap message = createMessage("playerJoin");
         message.put("name", player.getName());
         message.put("displayName", player.getDisplayName());
@@ -1158,32 +1583,31 @@ public final class Server implements OptionsListener, RemoteServer {
         message.put("hasReservation", hasReservation);
         message.put("prefix", Chat.getPrefix(player));
         message.put("suffix", Chat.getSuffix(player));
-        sendMessage(message);
+        Network.broadcast(message);
 
-        sendRemotePlayers(player);
+        for (Server server : Servers.getAll())
+            if (server.isConnectionConnected())
+                server.sendRemotePlayers(player);
     }
 
-    public void sendPlayerQuit(Player player, boolean hasReservation) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastPlayerQuit(Player player, boolean hasReservation) {
         TypeMap message = createMessage("playerQuit");
         message.put("name", player.getName());
         message.put("hasReservation", hasReservation);
-        sendMessage(message);
+        Network.broadcast(message);
     }
 
-    public void sendPlayerKick(Player player, boolean hasReservation) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastPlayerKick(Player player, boolean hasReservation) {
         TypeMap message = createMessage("playerKick");
         message.put("name", player.getName());
         message.put("hasReservation", hasReservation);
-        sendMessage(message);
+        Network.broadcast(message);
     }
 
-    public void sendPlayerDeath(Player player) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastPlayerDeath(Player player) {
         TypeMap message = createMessage("playerDeath");
         message.put("name", player.getName());
-        sendMessage(message);
+        Network.broadcast(message);
     }
 
     public void sendPrivateMessage(Player fromPlayer, RemotePlayer toPlayer, String msg) {
@@ -1196,24 +1620,38 @@ public final class Server implements OptionsListener, RemoteServer {
         sendMessage(message);
     }
 
+    public RemoteFuture<TypeMap> sendAPIRequest(String target, String method, TypeMap args) {
+        final RemoteFuture<TypeMap> future = new RemoteFuture<TypeMap>();
+        sendAPIRequest(new APICallback<TypeMap>() {
+            @Override
+            public void onSuccess(TypeMap m) {
+                future.onSuccess(m);
+            }
+            @Override
+            public void onFailure(RemoteException re) {
+                future.onFailure(re);
+            }
+        }, target, method, args);
+        return future;
+    }
+
     public void sendAPIRequest(APICallback<TypeMap> cb, String target, String method, TypeMap args) {
         if (! isConnectionConnected()) {
             cb.onFailure(new RemoteException("not connected"));
             return;
         }
         final long rid = nextRequestId++;
-        TypeMap out = createMessage("apiRequest");
-        out.put("requestId", rid);
-        out.put("target", target);
-        out.put("method", method);
-        out.put("args", args);
-        Utils.debug("api request to %s: %s", name, out);
+        TypeMap call = new TypeMap();
+        call.put("requestId", rid);
+        call.put("target", target);
+        call.put("method", method);
+        call.put("args", args);
+        Utils.debug("api request to %s: %s", name, call);
         cb.setRequestId(rid);
         requests.put(rid, cb);
-        sendMessage(out);
 
-        // setup delayed task to timeout the request on this side if we don't get a response
-        Utils.fireDelayed(new Runnable() {
+        // timeout the request on this side if we don't get a response, cancelled when the result arrives
+        cb.setTimeout(Network.scheduleSync(new Runnable() {
             @Override
             public void run() {
                 Callback<TypeMap> cb = requests.remove(rid);
@@ -1222,21 +1660,45 @@ public final class Server implements OptionsListener, RemoteServer {
                     Utils.debug("api request %s to %s timed out", rid, name);
                 }
             }
-        }, APIBackend.getTimeout());
+        }, APIBackend.getTimeout(), WorkQueue.Priority.DEFAULT));
 
+        if (batchCalls != null)
+            batchCalls.add(call);
+        else {
+            TypeMap out = createMessage("apiRequest");
+            out.putAll(call);
+            sendMessage(out);
+        }
     }
 
-    public void sendWorldLoad(World world) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastWorldLoad(World world) {
         TypeMap message = createMessage("worldLoad");
         message.put("name", world.getName());
-        sendMessage(message);
+        Network.broadcast(message);
     }
 
-    public void sendWorldUnload(World world) {
-        if (! isConnectionConnected()) return;
+    public static void broadcastWorldUnload(World world) {
         TypeMap message = createMessage("worldUnload");
         message.put("name", world.getName());
+        Network.broadcast(message);
+    }
+
+    // tells a spoke which other servers this hub relays for
+    void sendRelayMembers(Map<String,Server> routes) {
+        if (! isConnectionConnected()) return;
+        List<TypeMap> members = new ArrayList<TypeMap>();
+        for (Map.Entry<String,Server> e : routes.entrySet()) {
+            if (e.getValue() == this) continue;
+            TypeMap member = new TypeMap();
+            member.put("name", e.getKey());
+            member.put("version", e.getValue().getRemoteVersion());
+            String address = e.getValue().getRelayMemberAddress();
+            if (address != null)
+                member.put("address", address);
+            members.add(member);
+        }
+        TypeMap message = createMessage("relayMembers");
+        message.put("servers", members);
         sendMessage(message);
     }
 
@@ -1245,34 +1707,33 @@ public final class Server implements OptionsListener, RemoteServer {
     // Message handling
 
     // run in the main thread
-    private void receiveMessage(TypeMap message, String command) {
+    private void receiveMessage(TypeMap message, String command, MessageHandler handler) {
+        if (handler == null) {
+            Utils.warning("receive unrecognized command '%s' from '%s'", command, getName());
+            return;
+        }
+        long start = System.nanoTime();
         try {
-            if (! MESSAGE_HANDLERS.containsKey(command)) {
-                Utils.warning("receive unrecognized command '%s' from '%s'", command, getName());
-                return;
+            handler.receive(this, message);
+        } catch (TransporterException e) {
+            Utils.warning( "while processing command '%s' from '%s': %s", command, getName(), e.getMessage());
+            if (isConnectionConnected()) {
+                TypeMap response = createMessage("error");
+                response.put("success", false);
+                response.put("error", e.getMessage());
+                sendMessage(response);
             }
-            Method handler = MESSAGE_HANDLERS.get(command);
-            if (handler == null) return;
-            handler.invoke(this, message);
         } catch (Throwable t) {
-            Throwable c = t.getCause();
-            if (c instanceof TransporterException) {
-                Utils.warning( "while processing command '%s' from '%s': %s", command, getName(), c.getMessage());
-                if (isConnectionConnected()) {
-                    TypeMap response = createMessage("error");
-                    response.put("success", false);
-                    response.put("error", c.getMessage());
-                    sendMessage(response);
-                }
-            } else {
-                Utils.severe(t, "while processing command '%s' from '%s': %s", command, getName(), t.getMessage());
-                if (isConnectionConnected()) {
-                    TypeMap response = createMessage("error");
-                    response.put("success", false);
-                    response.put("error", t.getMessage());
-                    sendMessage(response);
-                }
+            Utils.severe(t, "while processing command '%s' from '%s': %s", command, getName(), t.getMessage());
+            if (isConnectionConnected()) {
+                TypeMap response = createMessage("error");
+                response.put("success", false);
+                response.put("error", t.getMessage());
+                sendMessage(response);
             }
+        } finally {
+            handler.count++;
+            handler.time += System.nanoTime() - start;
         }
     }
 
@@ -1306,35 +1767,18 @@ public final class Server implements OptionsListener, RemoteServer {
                     normalizedPrivateAddress.getAddress().getHostAddress() + ":" +
                     normalizedPrivateAddress.getPort());
 
-        // worlds
-        List<String> worlds = new ArrayList<String>();
-        for (World world : Global.plugin.getServer().getWorlds())
-            worlds.add(world.getName());
-        out.put("worlds", worlds);
-
-        // players
-        List<TypeMap> players = new ArrayList<TypeMap>();
-        for (Player player : Global.plugin.getServer().getOnlinePlayers()) {
-            TypeMap msg = new TypeMap();
-            msg.put("name", player.getName());
-            msg.put("displayName", player.getDisplayName());
-            msg.put("worldName", player.getWorld().getName());
-            msg.put("prefix", Chat.getPrefix(player));
-            msg.put("suffix", Chat.getSuffix(player));
-            players.add(msg);
-        }
-        out.put("players", players);
-
-        // gates
-        List<TypeMap> gates = new ArrayList<TypeMap>();
-        for (LocalGateImpl gate : Gates.getLocalGates()) {
-            TypeMap gm = new TypeMap();
-            gm.put("type", gate.getType().toString());
-            gm.put("name", gate.getLocalName());
-            gm.put("hidden", gate.getHidden());
-            gates.add(gm);
-        }
-        out.put("gates", gates);
+        // worlds, players and gates
+        RefreshState state = RefreshState.capture();
+        state.version = (sentState == null) ? 1 : (sentState.version + 1);
+        // send only the changes if the remote side has our last state, or if
+        // this isn't a request and it can ask for everything when it doesn't
+        if ((sentState != null) && supportsDeltaRefresh() &&
+            ((message == null) ||
+             ((message.getLong("syncId", 0) == sentState.id) && (message.getLong("version", -1) == sentState.version))))
+            state.putDelta(sentState, out);
+        else
+            state.putFull(out);
+        sentState = state;
 
         sendMessage(out);
     }
@@ -1359,69 +1803,144 @@ public final class Server implements OptionsListener, RemoteServer {
         remotePrivateAddress = message.getString("privateAddress");
         Utils.debug("received privateAddress '%s' from '%s'", remotePrivateAddress, getName());
 
-        // worlds
-        Collection<String> worlds = message.getStringList("worlds");
-        if (worlds == null)
-            throw new ServerException("world list required");
-        remoteWorlds.clear();
-        for (String worldName : worlds) {
-            try {
-                RemoteWorldImpl world = new RemoteWorldImpl(this, worldName);
-                remoteWorlds.put(world.getName(), world);
-            } catch (IllegalArgumentException iae) {
-                Utils.warning("received bad world from '%s'", getName());
+        if (message.containsKey("baseVersion")) {
+            if ((receivedState == null) ||
+                (message.getLong("syncId") != receivedState.id) ||
+                (message.getLong("baseVersion") != receivedState.version)) {
+                Utils.debug("received refresh from '%s' for a version we don't have, asking for everything", getName());
+                receivedState = null;
+                sendRefresh();
+                return;
             }
+            receivedState.applyDelta(message);
+            // everything was cleared if we were disconnected
+            if (readyForAPI)
+                applyRefreshDelta(message);
+            else
+                rebuildRemoteState();
+        } else {
+            receivedState = RefreshState.fromFull(message);
+            rebuildRemoteState();
         }
+
+        if (! readyForAPI) {
+            readyForAPI = true;
+            RemoteServerConnectEvent event = new RemoteServerConnectEvent(this);
+            Global.plugin.getServer().getPluginManager().callEvent(event);
+            if (relayVia == null)
+                Servers.updateRelayRoutes();
+        }
+    }
+
+    private void rebuildRemoteState() {
+        remoteWorlds.clear();
+        for (String worldName : receivedState.worlds)
+            putRemoteWorld(worldName);
         Utils.debug("received %d worlds from '%s'", remoteWorlds.size(), getName());
 
-        // players
-        Collection<TypeMap> players = message.getMapList("players");
-        if (players == null)
-            throw new ServerException("player list required");
         clearRemotePlayers();
-        for (TypeMap msg : players) {
-            try {
-                RemotePlayerImpl player = new RemotePlayerImpl(this, msg.getString("name"), msg.getString("displayName"), msg.getString("worldName"), msg.getString("prefix"), msg.getString("suffix"));
-                addRemotePlayer(player);
-            } catch (IllegalArgumentException iae) {
-                Utils.warning("received bad player from '%s'", getName());
-            }
-        }
+        for (TypeMap msg : receivedState.players.values())
+            putRemotePlayer(msg);
         Utils.debug("received %d players from '%s'", remotePlayers.size(), getName());
 
-        // gates
-        Collection<TypeMap> gates = message.getMapList("gates");
-        if (gates == null)
-            throw new ServerException("gate list required");
         remoteGates.clear();
         Gates.removeGatesForServer(this);
-        for (TypeMap gm : gates) {
+        for (TypeMap gm : receivedState.gates.values())
+            putRemoteGate(gm);
+        Utils.debug("received %d gates from '%s'", remoteGates.size(), getName());
+    }
+
+    private void applyRefreshDelta(TypeMap message) {
+        int changes = 0;
+        List<String> names = message.getStringList("worlds");
+        if (names != null)
+            for (String worldName : names) {
+                putRemoteWorld(worldName);
+                changes++;
+            }
+        names = message.getStringList("worldsRemoved");
+        if (names != null)
+            for (String worldName : names) {
+                remoteWorlds.remove(worldName);
+                changes++;
+            }
+
+        List<TypeMap> maps = message.getMapList("players");
+        if (maps != null)
+            for (TypeMap msg : maps) {
+                removeRemotePlayer(msg.getString("name"));
+                putRemotePlayer(msg);
+                changes++;
+            }
+        names = message.getStringList("playersRemoved");
+        if (names != null)
+            for (String playerName : names) {
+                removeRemotePlayer(playerName);
+                changes++;
+            }
+
+        maps = message.getMapList("gates");
+        if (maps != null)
+            for (TypeMap gm : maps) {
+                removeRemoteGate(gm.getString("name"));
+                putRemoteGate(gm);
+                changes++;
+            }
+        names = message.getStringList("gatesRemoved");
+        if (names != null)
+            for (String gateName : names) {
+                removeRemoteGate(gateName);
+                changes++;
+            }
+        Utils.debug("received %d changes from '%s'", changes, getName());
+    }
+
+    private void putRemoteWorld(String worldName) {
+        try {
+            RemoteWorldImpl world = new RemoteWorldImpl(this, worldName);
+            remoteWorlds.put(world.getName(), world);
+        } catch (IllegalArgumentException iae) {
+            Utils.warning("received bad world from '%s'", getName());
+        }
+    }
+
+    private void putRemotePlayer(TypeMap msg) {
+        try {
+            RemotePlayerImpl player = new RemotePlayerImpl(this, msg.getString("name"), msg.getString("displayName"), msg.getString("worldName"), msg.getString("prefix"), msg.getString("suffix"));
+            addRemotePlayer(player);
+        } catch (IllegalArgumentException iae) {
+            Utils.warning("received bad player from '%s'", getName());
+        }
+    }
+
+    private void putRemoteGate(TypeMap gm) {
+        try {
+            String gTypeStr = gm.getString("type");
+            GateType gType = Utils.valueOf(GateType.class, gTypeStr);
+            String gName = gm.getString("name");
+            boolean gHidden = gm.getBoolean("hidden");
+            RemoteGateImpl gate = RemoteGateImpl.create(this, gType, gName, gHidden);
+            remoteGates.put(gate.getLocalName(), gate);
             try {
-                String gTypeStr = gm.getString("type");
-                GateType gType = Utils.valueOf(GateType.class, gTypeStr);
-                String gName = gm.getString("name");
-                boolean gHidden = gm.getBoolean("hidden");
-                RemoteGateImpl gate = RemoteGateImpl.create(this, gType, gName, gHidden);
-                remoteGates.put(gate.getLocalName(), gate);
-                try {
-                    Gates.add(gate, false);
-                } catch (GateException ge) {
-                    remoteGates.remove(gate.getLocalName());
-                    throw new IllegalArgumentException();
-                }
+                Gates.add(gate, false);
             } catch (GateException ge) {
-                Utils.warning("received bad gate from '%s'", getName());
-            } catch (IllegalArgumentException iae) {
-                Utils.warning("received bad gate from '%s'", getName());
+                remoteGates.remove(gate.getLocalName());
+                throw new IllegalArgumentException();
             }
+        } catch (GateException ge) {
+            Utils.warning("received bad gate from '%s'", getName());
+        } catch (IllegalArgumentException iae) {
+            Utils.warning("received bad gate from '%s'", getName());
         }
-        Utils.debug("received %d gates from '%s'", remoteGates.size(), getName());
+    }
 
-        if (! readyForAPI) {
-            readyForAPI = true;
-            RemoteServerConnectEvent event = new RemoteServerConnectEvent(this);
-            Global.plugin.getServer().getPluginManager().callEvent(event);
-        }
+    private void removeRemoteGate(String gateName) {
+        if (gateName == null) return;
+        RemoteGateImpl gate = remoteGates.remove(gateName);
+        if (gate == null) return;
+        try {
+            Gates.remove(gate);
+        } catch (GateException ge) {}
     }
 
     private void receiveGateCreated(TypeMap message) {
@@ -1815,17 +2334,39 @@ public final class Server implements OptionsListener, RemoteServer {
     }
 
     private void receiveApiRequest(TypeMap message) throws ServerException {
-        String target = message.getString("target");
+        List<TypeMap> calls = message.getMapList("calls");
+        if (calls != null) {
+            // a batch is answered with one result holding the results of every call
+            List<TypeMap> results = new ArrayList<TypeMap>(calls.size());
+            for (TypeMap call : calls) {
+                TypeMap result = new TypeMap();
+                result.put("requestId", call.getLong("requestId"));
+                try {
+                    invokeApiRequest(call, result);
+                } catch (ServerException se) {
+                    result.put("failure", se.getMessage());
+                }
+                results.add(result);
+            }
+            TypeMap out = createMessage("apiResult");
+            out.put("results", results);
+            sendMessage(out);
+            return;
+        }
+        TypeMap out = createMessage("apiResult");
+        out.put("requestId", message.getLong("requestId"));
+        invokeApiRequest(message, out);
+        sendMessage(out);
+    }
+
+    private void invokeApiRequest(TypeMap call, TypeMap out) throws ServerException {
+        String target = call.getString("target");
         if (target == null)
             throw new ServerException("missing target");
-        String method = message.getString("method");
+        String method = call.getString("method");
         if (method == null)
             throw new ServerException("missing method");
-        long rid = message.getLong("requestId");
-        TypeMap args = message.getMap("args");
-
-        TypeMap out = createMessage("apiResult");
-        out.put("requestId", rid);
+        TypeMap args = call.getMap("args");
         try {
             if ("server".equals(target) && "dispatchCommand".equals(method) && (! getAllowRemoteCommands()))
                 throw new Exception("Remote commands are disabled.");
@@ -1833,21 +2374,30 @@ public final class Server implements OptionsListener, RemoteServer {
         } catch (Throwable t) {
             out.put("failure", t.getMessage());
         }
-        sendMessage(out);
     }
 
     private void receiveApiResult(TypeMap message) throws ServerException {
-        long rid = message.getLong("requestId");
-        Callback<TypeMap> cb = requests.remove(rid);
+        List<TypeMap> results = message.getMapList("results");
+        if (results != null) {
+            for (TypeMap result : results)
+                completeApiRequest(result);
+        } else
+            completeApiRequest(message);
+    }
+
+    private void completeApiRequest(TypeMap result) {
+        long rid = result.getLong("requestId");
+        APICallback<TypeMap> cb = requests.remove(rid);
         if (cb == null) {
             Utils.debug("received result for unknown api request %s from %s (maybe it timed out?)", rid, name);
             return;
         }
-        String failure = message.getString("failure");
+        cb.cancelTimeout();
+        String failure = result.getString("failure");
         if (failure != null)
-            cb.onFailure(new RemoteException(failure));
+            cb.onFailure(new RemoteException("%s", failure));
         else
-            cb.onSuccess(message);
+            cb.onSuccess(result);
     }
 
     private void receiveWorldLoad(TypeMap message) throws ServerException {
@@ -1865,23 +2415,161 @@ public final class Server implements OptionsListener, RemoteServer {
         remoteWorlds.remove(worldName);
     }
 
+    // called from the network thread
+    private void receiveRelay(TypeMap message) {
+        TypeMap inner = message.getMap("message");
+        if (inner == null) {
+            Utils.warning("missing relayed message from '%s'", getName());
+            return;
+        }
+        String from = message.getString("from");
+        if (from != null) {
+            // from a hub, on behalf of one of the servers behind it
+            Server server = relayedServers.get(from);
+            if (server == null)
+                Utils.debug("dropping message relayed by '%s' from unknown server '%s'", getName(), from);
+            else
+                server.onMessage(inner);
+            return;
+        }
+
+        // to us as a hub, from one of the spokes
+        String to = message.getString("to");
+        // broadcasts are for the hub too
+        if (to == null)
+            onMessage(inner.clone());
+        Map<String,Server> routes = Servers.getRelayRoutes();
+        String sender = null;
+        for (Map.Entry<String,Server> e : routes.entrySet())
+            if (e.getValue() == this) {
+                sender = e.getKey();
+                break;
+            }
+        if (sender == null) {
+            Utils.debug("not relaying message from '%s'", getName());
+            return;
+        }
+        TypeMap out = createMessage("relay");
+        out.put("from", sender);
+        out.put("message", inner);
+        EncodedMessage encoded = new EncodedMessage(out);
+        if (to != null) {
+            Server target = routes.get(to);
+            if (target == null)
+                Utils.debug("unable to relay message from '%s' to unknown server '%s'", getName(), to);
+            else
+                target.sendMessage(encoded);
+        } else {
+            for (Server server : routes.values())
+                if (server != this)
+                    server.sendMessage(encoded);
+        }
+    }
+
+    private void receiveRelayMembers(TypeMap message) throws ServerException {
+        List<TypeMap> servers = message.getMapList("servers");
+        if (servers == null)
+            throw new ServerException("server list required");
+        if (! relay) {
+            if (! servers.isEmpty())
+                Utils.warning("ignoring %d servers relayed by '%s' because relay is not enabled for it", servers.size(), getName());
+            return;
+        }
+        Map<String,TypeMap> members = new HashMap<String,TypeMap>();
+        for (TypeMap member : servers)
+            if (member.getString("name") != null)
+                members.put(member.getString("name"), member);
+        members.remove(Global.plugin.getServer().getServerName());
+
+        for (Server server : new ArrayList<Server>(relayedServers.values()))
+            if (! members.containsKey(server.getName()))
+                removeRelayedServer(server);
+        for (Map.Entry<String,TypeMap> e : members.entrySet()) {
+            String serverName = e.getKey();
+            if (relayedServers.containsKey(serverName)) continue;
+            // a direct link is always used instead
+            if (Servers.findByRemoteName(serverName) != null) continue;
+            Server server;
+            try {
+                server = new Server(serverName, this);
+                Servers.add(server);
+            } catch (ServerException se) {
+                Utils.warning("unable to add server '%s' relayed by '%s': %s", serverName, getName(), se.getMessage());
+                continue;
+            }
+            Map<String,Server> relayed = new HashMap<String,Server>(relayedServers);
+            relayed.put(serverName, server);
+            relayedServers = relayed;
+            server.relayAddress = e.getValue().getString("address");
+            server.onRelayConnected(e.getValue().getString("version"));
+        }
+    }
+
+    // called on the main thread
+    void removeRelayedServer(Server server) {
+        Map<String,Server> relayed = new HashMap<String,Server>(relayedServers);
+        if (relayed.remove(server.getName()) == null) return;
+        relayedServers = relayed;
+        server.onRelayDisconnected();
+        Servers.remove(server);
+    }
+
+    private void dropRelayedServers() {
+        for (Server server : new ArrayList<Server>(relayedServers.values()))
+            removeRelayedServer(server);
+    }
+
     // Utility methods
 
-    private TypeMap createMessage(String command) {
+    private static TypeMap createMessage(String command) {
         TypeMap m = new TypeMap();
         m.put("command", command);
         return m;
     }
 
-    private void sendMessage(final TypeMap message) {
-        Utils.debug("sending command '%s' to %s", message.getString("command", "<none>"), name);
-        Utils.worker(new Runnable() {
-            @Override
-            public void run() {
-                if (connection != null)
-                    connection.sendMessage(message, true);
-            }
-        });
+    private void sendMessage(TypeMap message) {
+        sendMessage(new EncodedMessage(message));
+    }
+
+    // The same message can be queued on several servers, it's only encoded once.
+    public void sendMessage(EncodedMessage message) {
+        if (relayVia != null) {
+            TypeMap out = createMessage("relay");
+            out.put("to", name);
+            out.put("message", message.getMessage());
+            relayVia.sendMessage(out);
+            return;
+        }
+        Utils.debug("sending command '%s' to %s", message.getMessage().getString("command", "<none>"), name);
+        outbound.offer(message);
+        // only the first message since the last flush needs to wake up the network
+        if (outboundPending.compareAndSet(false, true))
+            Network.flush(this);
+    }
+
+    // Sends a message meant for every server. A relay hub gets it once and
+    // passes it on to the servers behind it.
+    public void sendBroadcast(EncodedMessage message) {
+        if (relayedServers.isEmpty()) {
+            sendMessage(message);
+            return;
+        }
+        TypeMap out = createMessage("relay");
+        out.put("message", message.getMessage());
+        sendMessage(out);
+    }
+
+    // Called from the network layer. Everything queued since the last flush
+    // is sent together, usually as a single record.
+    public void flushOutbound() {
+        outboundPending.set(false);
+        List<EncodedMessage> messages = new ArrayList<EncodedMessage>();
+        EncodedMessage message;
+        while ((message = outbound.poll()) != null)
+            messages.add(message);
+        Connection conn = connection;
+        if ((conn == null) || messages.isEmpty()) return;
+        conn.sendMessages(messages, true);
     }
 
     private void normalizePrivateAddress(String addrStr) {
@@ -1986,8 +2674,14 @@ public final class Server implements OptionsListener, RemoteServer {
                     throw new IllegalArgumentException("invalid port " + parts[1]);
                 }
             }
-            if (address.equals("*"))
-                address = pluginAddress.split(":")[0];
+            if (address.equals("*")) {
+                if (relayVia == null)
+                    address = pluginAddress.split(":")[0];
+                else if (relayAddress != null)
+                    address = relayAddress;
+                else
+                    throw new IllegalArgumentException("publicAddress '*' can't be used through hub '" + relayVia.getName() + "' because it didn't send an address");
+            }
 
             AddressMatch match = new AddressMatch();
             match.connectTo = address + ":" + port;
@@ -2060,6 +2754,15 @@ public final class Server implements OptionsListener, RemoteServer {
         return buf.toString();
     }
 
+    // knows its own timeout so it can tell whether it's still the current keepalive
+    private final class KeepAliveTask implements Runnable {
+        volatile TimerWheel.Timeout timeout = null;
+        @Override
+        public void run() {
+            keepAlive(timeout);
+        }
+    }
+
     private class AddressMatch {
         String connectTo;
         Set<Pattern> patterns;
@@ -16,6 +16,10 @@
 package com.frdfsnlght.transporter;
 
 import com.frdfsnlght.transporter.api.RemoteServer;
+import com.frdfsnlght.transporter.net.Connection;
+import com.frdfsnlght.transporter.net.Network;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -31,6 +35,15 @@ public final class Servers {
 
     private static final Map<String,Server> servers = new HashMap<String,Server>();
 
+    // Maps a digest of each server's expected handshake key hash to the server.
+    // Replaced as a whole when keys change so it can be read from any thread.
+    private static volatile Map<String,KeyEntry> keyIndex = new HashMap<String,KeyEntry>();
+
+    // When this server is a relay hub, maps the remote name of each connected
+    // server that can take relayed messages to the server. Replaced as a whole
+    // so it can be read from any thread.
+    private static volatile Map<String,Server> relayRoutes = new HashMap<String,Server>();
+
     public static void onConfigLoad(Context ctx) {
         removeAll();
         servers.clear();
@@ -51,7 +64,8 @@ public final class Servers {
     public static void onConfigSave() {
         List<Map<String,Object>> serverNodes = new ArrayList<Map<String,Object>>();
         for (Server server : servers.values())
-            serverNodes.add(server.encode());
+            if (! server.isRelayed())
+                serverNodes.add(server.encode());
         Config.setPropertyDirect("servers", serverNodes);
     }
 
@@ -60,7 +74,8 @@ public final class Servers {
         if (servers.containsKey(name))
             throw new ServerException("a server with the same name already exists");
         servers.put(server.getName(), server);
-        if (server.isEnabled())
+        rebuildKeyIndex();
+        if (server.isEnabled() && (! server.isRelayed()))
             Utils.fireDelayed(new Runnable() {
                 @Override
                 public void run() {
@@ -73,6 +88,7 @@ public final class Servers {
         String name = server.getName();
         if (! servers.containsKey(name)) return;
         servers.remove(name);
+        rebuildKeyIndex();
         server.disconnect(false);
     }
 
@@ -83,7 +99,7 @@ public final class Servers {
 
     public static void connectAll() {
         for (final Server server : servers.values()) {
-            if ((! server.isConnectionConnected()) && server.isEnabled())
+            if ((! server.isConnectionConnected()) && server.isEnabled() && (! server.isRelayed()))
                 Utils.fireDelayed(new Runnable() {
                     @Override
                     public void run() {
@@ -127,6 +143,72 @@ public final class Servers {
         return server;
     }
 
+    // Called on the main thread when a server connects or disconnects. Drops
+    // servers reached through a hub that now have a direct link and, if this
+    // server is a relay hub, tells every spoke about the others.
+    public static void updateRelayRoutes() {
+        Map<String,Server> direct = new HashMap<String,Server>();
+        for (Server server : servers.values())
+            if ((! server.isRelayed()) && server.isConnected() && (server.getRemoteServer() != null))
+                direct.put(server.getRemoteServer(), server);
+        for (Server server : getAll())
+            if (server.isRelayed() && direct.containsKey(server.getName()))
+                server.getRelayVia().removeRelayedServer(server);
+
+        Map<String,Server> routes = new HashMap<String,Server>();
+        if (Network.getRelayHub())
+            for (Map.Entry<String,Server> e : direct.entrySet()) {
+                Connection conn = e.getValue().getConnection();
+                if ((conn != null) && conn.supportsRelay())
+                    routes.put(e.getKey(), e.getValue());
+            }
+        Map<String,Server> oldRoutes = relayRoutes;
+        if (routes.equals(oldRoutes)) return;
+        relayRoutes = routes;
+        Utils.debug("relaying for %d servers", routes.size());
+        for (Server server : routes.values())
+            server.sendRelayMembers(routes);
+        // spokes that are no longer relayed for forget the others
+        for (Server server : oldRoutes.values())
+            if (! routes.containsValue(server))
+                server.sendRelayMembers(new HashMap<String,Server>());
+    }
+
+    // can be called from any thread
+    public static Map<String,Server> getRelayRoutes() {
+        return relayRoutes;
+    }
+
+    // called when a server is added or removed, or a key changes
+    public static void rebuildKeyIndex() {
+        Map<String,KeyEntry> index = new HashMap<String,KeyEntry>();
+        String networkKey = Network.getCachedKey();
+        for (Server server : servers.values()) {
+            if (server.getKey() == null) continue;
+            String keyHash = Connection.createKeyHash(server.getKey(), networkKey);
+            String indexKey = Connection.createIndexHash(keyHash);
+            if (index.containsKey(indexKey)) {
+                Utils.warning("server '%s' has the same key as server '%s'", server.getName(), index.get(indexKey).server.getName());
+                continue;
+            }
+            index.put(indexKey, new KeyEntry(server, keyHash));
+        }
+        keyIndex = index;
+    }
+
+    // Returns the server whose handshake key hash matches the one received, or null.
+    // can be called from any thread
+    public static Server findByKeyHash(String keyHash) {
+        KeyEntry entry = keyIndex.get(Connection.createIndexHash(keyHash));
+        if (entry == null) return null;
+        // the index only narrows the search, the real comparison takes constant time
+        try {
+            if (MessageDigest.isEqual(entry.keyHash.getBytes("UTF-8"), keyHash.getBytes("UTF-8")))
+                return entry.server;
+        } catch (UnsupportedEncodingException e) {}
+        return null;
+    }
+
     public static List<Server> getAll() {
         return new ArrayList<Server>(servers.values());
     }
@@ -146,4 +228,13 @@ public final class Servers {
         return server;
     }
 
+    private static final class KeyEntry {
+        final Server server;
+        final String keyHash;
+        KeyEntry(Server server, String keyHash) {
+            this.server = server;
+            this.keyHash = keyHash;
+        }
+    }
+
 }
@@ -116,6 +116,7 @@ public class Transporter extends JavaPlugin {
         entityListener = new EntityListenerImpl();
 
         Designs.load(ctx);
+        WorkQueue.start();
         Network.start(ctx);
         Realm.start(ctx);
 
@@ -167,6 +168,7 @@ public class Transporter extends JavaPlugin {
         Network.stop(ctx);
         Config.save(ctx);
         Gates.save(ctx);
+        WorkQueue.stop();
         ctx.sendLog("disabled");
         Global.plugin = null;
     }
@@ -24,6 +24,7 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
@@ -41,7 +42,13 @@ import org.yaml.snakeyaml.Yaml;
 public final class TypeMap extends HashMap<String,Object> implements Cloneable {
 
     public static TypeMap decode(String encoded) {
-        return (TypeMap)decodeObject(new StringBuilder(encoded));
+        int[] pos = new int[1];
+        pos[0] = 0;
+        return (TypeMap)decodeObject(encoded, pos);
+    }
+
+    public static TypeMap decodeBinary(ByteBuffer encoded) {
+        return (TypeMap)Binary.decode(encoded);
     }
 
     public static TypeMap decodeJSON(String encoded) {
@@ -63,23 +70,23 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         throw new IllegalArgumentException("unable to encode '" + v.getClass().getName() + "'");
     }
 
-    private static Object decodeObject(StringBuilder b) {
+    // pos is the current read position in the encoded string and is advanced past the object
+    private static Object decodeObject(String b, int[] pos) {
         //if (b.length() == 0) return null;   // to fix StringIndexOutOfBoundsException?
-        char type = b.charAt(0);
-        b.delete(0, 2);
-        int pos = b.indexOf(":");
-        int len = Integer.parseInt(b.substring(0, pos));
-        b.delete(0, pos + 1);
+        char type = b.charAt(pos[0]);
+        int sep = b.indexOf(':', pos[0] + 2);
+        int len = Integer.parseInt(b.substring(pos[0] + 2, sep));
+        pos[0] = sep + 1;
         switch (type) {
             case 'n':
 //System.out.println("decoded null");
                 return null;
-            case 's': return decodeString(b, len);
-            case 'b': return decodeBoolean(b, len);
-            case 'l': return decodeLong(b, len);
-            case 'd': return decodeDouble(b, len);
-            case 'm': return decodeMap(b, len);
-            case 'v': return decodeList(b, len);
+            case 's': return decodeString(b, pos, len);
+            case 'b': return decodeBoolean(b, pos, len);
+            case 'l': return decodeLong(b, pos, len);
+            case 'd': return decodeDouble(b, pos, len);
+            case 'm': return decodeMap(b, pos, len);
+            case 'v': return decodeList(b, pos, len);
             default:
                 throw new IllegalArgumentException("unable to decode '" + type + "'");
         }
@@ -107,10 +114,10 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return "s:" + v.length() + ":" + v;
     }
 
-    private static String decodeString(StringBuilder b, int len) {
+    private static String decodeString(String b, int[] pos, int len) {
 //System.out.print("decode string (" + len + "): ");
-        String str = b.substring(0, len);
-        b.delete(0, len);
+        String str = b.substring(pos[0], pos[0] + len);
+        pos[0] += len;
         try {
             String s = URLDecoder.decode(str, "UTF-8");
 //System.out.println(s);
@@ -130,9 +137,9 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return "b:" + s.length() + ":" + s;
     }
 
-    private static Boolean decodeBoolean(StringBuilder b, int len) {
-        String str = b.substring(0, len);
-        b.delete(0, len);
+    private static Boolean decodeBoolean(String b, int[] pos, int len) {
+        String str = b.substring(pos[0], pos[0] + len);
+        pos[0] += len;
         Boolean bool = Boolean.parseBoolean(str);
 //System.out.println("decode boolean: " + bool);
         return bool;
@@ -147,9 +154,9 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return "l:" + s.length() + ":" + s;
     }
 
-    private static Long decodeLong(StringBuilder b, int len) {
-        String str = b.substring(0, len);
-        b.delete(0, len);
+    private static Long decodeLong(String b, int[] pos, int len) {
+        String str = b.substring(pos[0], pos[0] + len);
+        pos[0] += len;
         Long l = Long.parseLong(str);
 //System.out.println("decode long: " + l);
         return l;
@@ -164,9 +171,9 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return "d:" + s.length() + ":" + s;
     }
 
-    private static Double decodeDouble(StringBuilder b, int len) {
-        String str = b.substring(0, len);
-        b.delete(0, len);
+    private static Double decodeDouble(String b, int[] pos, int len) {
+        String str = b.substring(pos[0], pos[0] + len);
+        pos[0] += len;
         Double d = Double.parseDouble(str);
 //System.out.println("decode double: " + d);
         return d;
@@ -186,13 +193,13 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return buf.toString();
     }
 
-    private static TypeMap decodeMap(StringBuilder b, int len) {
+    private static TypeMap decodeMap(String b, int[] pos, int len) {
 //System.out.println("decode message (" + len + ")");
         TypeMap m = new TypeMap();
         for (int i = 0; i < len; i++) {
 //System.out.print(" message item " + i + ": ");
-            String key = (String)decodeObject(b);
-            Object value = decodeObject(b);
+            String key = (String)decodeObject(b, pos);
+            Object value = decodeObject(b, pos);
             m.put(key, value);
         }
         return m;
@@ -215,12 +222,12 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return buf.toString();
     }
 
-    private static List<Object> decodeList(StringBuilder b, int len) {
+    private static List<Object> decodeList(String b, int[] pos, int len) {
 //System.out.println("decode list (" + len + ")");
         List<Object> l = new ArrayList<Object>();
         for (int i = 0; i < len; i++) {
 //System.out.print(" list item " + i + ": ");
-            l.add(decodeObject(b));
+            l.add(decodeObject(b, pos));
         }
         return l;
     }
@@ -379,6 +386,14 @@ public final class TypeMap extends HashMap<String,Object> implements Cloneable {
         return encodeMap(this);
     }
 
+    public ByteBuffer encodeBinary() {
+        return Binary.encode(this);
+    }
+
+    public ByteBuffer encodeBinary(ByteBuffer buffer) {
+        return Binary.encode(this, buffer);
+    }
+
     public String encodeJSON() {
         return JSON.encode(this);
     }
@@ -374,15 +374,23 @@ public class Utils {
     }
 
     public static int fire(Runnable run) {
+        return fire(run, WorkQueue.Priority.DEFAULT);
+    }
+
+    public static int fire(Runnable run, WorkQueue.Priority priority) {
         if (! Global.enabled) return -1;
-        return Global.plugin.getServer().getScheduler().scheduleSyncDelayedTask(Global.plugin, run);
+        return WorkQueue.add(run, priority, 0);
     }
 
     // delay is millis
     public static int fireDelayed(Runnable run, long delay) {
+        return fireDelayed(run, delay, WorkQueue.Priority.DEFAULT);
+    }
+
+    // delay is millis
+    public static int fireDelayed(Runnable run, long delay, WorkQueue.Priority priority) {
         if (! Global.enabled) return -1;
-        long ticks = delay / 50;
-        return Global.plugin.getServer().getScheduler().scheduleSyncDelayedTask(Global.plugin, run, ticks);
+        return WorkQueue.add(run, priority, delay);
     }
 
     public static <T> Future<T> call(Callable<T> task) {
@@ -402,9 +410,10 @@ public class Utils {
         return Global.plugin.getServer().getScheduler().scheduleAsyncDelayedTask(Global.plugin, run, ticks);
     }
 
+    // only for tasks returned by fire and fireDelayed
     public static void cancelTask(int taskId) {
         if (! Global.enabled) return;
-        Global.plugin.getServer().getScheduler().cancelTask(taskId);
+        WorkQueue.cancel(taskId);
     }
 
     public static <T extends Enum<T>> T valueOf(Class<T> cls, String s) {
@@ -605,8 +614,8 @@ public class Utils {
                             (server.isEnabled() ? "up" : "down"),
                             (! server.isConnectionConnected() ? "down" :
                                 String.format("up %s %s v%s",
-                                    server.isIncoming() ? "incoming" : "outgoing",
-                                    server.getConnection().getName(),
+                                    server.isRelayed() ? "relayed" : (server.isIncoming() ? "incoming" : "outgoing"),
+                                    (server.isRelayed() ? "via " + server.getRelayVia().getName() : server.getConnection().getName()),
                                     server.getRemoteVersion()))
                         );
                 writer.format("    publicAddress:        %s (%s)\n",
@@ -32,7 +32,7 @@ public class VehicleListenerImpl implements Listener {
     @EventHandler(priority = EventPriority.MONITOR)
     public void onVehicleMove(VehicleMoveEvent event) {
         Vehicle vehicle = event.getVehicle();
-        LocalGateImpl fromGate = Gates.findGateForPortal(event.getTo());
+        LocalGateImpl fromGate = Gates.findGateForPortal(event.getFrom(), event.getTo());
         if (fromGate == null) {
             ReservationImpl.removeGateLock(vehicle);
             return;
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs work on the main thread from a single repeating task.
+ * <p>
+ * Each tick, tasks are run in priority order until the tick budget is
+ * used up. Whatever is left is carried over to the next tick. At least one
+ * task is run every tick so nothing is starved completely.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class WorkQueue {
+
+    // in the order they're run
+    public enum Priority {
+        RESERVATION,
+        DEFAULT,
+        CHAT,
+        PLAYER_LIST;
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private static final List<Queue<Task>> queues = new ArrayList<Queue<Task>>();
+    private static final PriorityQueue<Task> delayed = new PriorityQueue<Task>();
+    private static final Map<Integer,Task> tasks = new ConcurrentHashMap<Integer,Task>();
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    private static int pumpTask = -1;
+    private static volatile long tick = 0;
+
+    // counters, only updated on the main thread
+    private static long tasksRun = 0;
+    private static long totalTime = 0;
+    private static long lastTickTime = 0;
+    private static long maxTickTime = 0;
+    private static long overBudgetTicks = 0;
+    private static long carriedOver = 0;
+
+    static {
+        for (Priority p : PRIORITIES)
+            queues.add(new ConcurrentLinkedQueue<Task>());
+    }
+
+    public static void start() {
+        if (pumpTask != -1) return;
+        pumpTask = Global.plugin.getServer().getScheduler().scheduleSyncRepeatingTask(Global.plugin, new Runnable() {
+            @Override
+            public void run() {
+                pump();
+            }
+        }, 1, 1);
+    }
+
+    public static void stop() {
+        if (pumpTask == -1) return;
+        Global.plugin.getServer().getScheduler().cancelTask(pumpTask);
+        pumpTask = -1;
+        for (Queue<Task> queue : queues)
+            queue.clear();
+        synchronized (delayed) {
+            delayed.clear();
+        }
+        tasks.clear();
+    }
+
+    // can be called from any thread, delay is millis
+    public static int add(Runnable run, Priority priority, long delay) {
+        Task task = new Task(nextId.getAndIncrement(), run, priority);
+        tasks.put(task.id, task);
+        long ticks = delay / 50;
+        if (ticks <= 0)
+            queues.get(priority.ordinal()).offer(task);
+        else
+            synchronized (delayed) {
+                task.dueTick = tick + ticks;
+                delayed.add(task);
+            }
+        return task.id;
+    }
+
+    // can be called from any thread
+    public static boolean cancel(int id) {
+        Task task = tasks.remove(id);
+        if (task == null) return false;
+        task.cancelled = true;
+        return true;
+    }
+
+    public static int getQueueDepth(Priority priority) {
+        return queues.get(priority.ordinal()).size();
+    }
+
+    public static int getDelayedDepth() {
+        synchronized (delayed) {
+            return delayed.size();
+        }
+    }
+
+    public static long getTasksRun() {
+        return tasksRun;
+    }
+
+    // nanoseconds
+    public static long getTotalTime() {
+        return totalTime;
+    }
+
+    // nanoseconds
+    public static long getLastTickTime() {
+        return lastTickTime;
+    }
+
+    // nanoseconds
+    public static long getMaxTickTime() {
+        return maxTickTime;
+    }
+
+    public static long getOverBudgetTicks() {
+        return overBudgetTicks;
+    }
+
+    public static long getCarriedOver() {
+        return carriedOver;
+    }
+
+    public static void resetCounters() {
+        tasksRun = totalTime = lastTickTime = maxTickTime = overBudgetTicks = carriedOver = 0;
+    }
+
+    private static void pump() {
+        tick++;
+        synchronized (delayed) {
+            while ((! delayed.isEmpty()) && (delayed.peek().dueTick <= tick)) {
+                Task task = delayed.poll();
+                queues.get(task.priority.ordinal()).offer(task);
+            }
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + (Config.getTickBudget() * 1000L);
+        long now = start;
+        boolean overBudget = false;
+        Task task;
+        while ((task = next()) != null) {
+            if (task.cancelled) continue;
+            tasks.remove(task.id);
+            try {
+                task.run.run();
+            } catch (Throwable t) {
+                Utils.severe(t, "unhandled exception in queued task: %s", t.getMessage());
+            }
+            tasksRun++;
+            now = System.nanoTime();
+            if (now >= deadline) {
+                overBudget = true;
+                break;
+            }
+        }
+
+        lastTickTime = now - start;
+        totalTime += lastTickTime;
+        if (lastTickTime > maxTickTime) maxTickTime = lastTickTime;
+        if (overBudget) {
+            int left = 0;
+            for (Queue<Task> queue : queues)
+                left += queue.size();
+            if (left > 0) {
+                overBudgetTicks++;
+                carriedOver += left;
+            }
+        }
+    }
+
+    // higher priorities are checked again after every task because tasks can queue more work
+    private static Task next() {
+        for (Queue<Task> queue : queues) {
+            Task task = queue.poll();
+            if (task != null) return task;
+        }
+        return null;
+    }
+
+    private static final class Task implements Comparable<Task> {
+
+        final int id;
+        final Runnable run;
+        final Priority priority;
+        long dueTick;
+        volatile boolean cancelled = false;
+
+        Task(int id, Runnable run, Priority priority) {
+            this.id = id;
+            this.run = run;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (dueTick < other.dueTick) return -1;
+            if (dueTick > other.dueTick) return 1;
+            return (id < other.id) ? -1 : ((id > other.id) ? 1 : 0);
+        }
+
+    }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents the pending result of an asynchronous API call.
+ * <p>
+ * A future completes exactly once, either with a value or with a
+ * {@link RemoteException}. Callbacks can be added before or after it
+ * completes, and futures can be chained so a call can use the result
+ * of a previous call without nesting callbacks. Nothing ever blocks
+ * waiting for a future. Timeouts are handled by the call that created
+ * the future, which fails it if the remote side doesn't answer in time.
+ * <p>
+ * For example, to send a message to a remote player in whatever world
+ * they're in, and find out the time in that world:
+ * <p>
+ * <pre>
+ * {@code
+ * player.sendMessage("hello").thenCompose(new RemoteFuture.Function<Void,RemoteFuture<Long>>() {
+ *     public RemoteFuture<Long> apply(Void v) {
+ *         return player.getRemoteWorld().getTime();
+ *     }
+ * }).whenComplete(new Callback<Long>() {
+ *     public void onSuccess(Long time) {
+ *         System.out.println("the remote time is " + time);
+ *     }
+ * });
+ * }
+ * </pre>
+ * <p>
+ * Because a future is also a {@link Callback}, it can be passed to any
+ * API method that takes a callback.
+ * <p>
+ * Callbacks are called on the thread that completes the future, which is
+ * the main server thread for all API calls.
+ *
+ * @param <T> the type of the result
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public class RemoteFuture<T> extends Callback<T> {
+
+    /**
+     * Represents a function applied to the result of a future.
+     *
+     * @param <A> the type of the argument
+     * @param <B> the type of the return value
+     */
+    public interface Function<A,B> {
+
+        /**
+         * Applies the function.
+         * <p>
+         * Any exception thrown fails the future returned by
+         * {@link RemoteFuture#thenApply} or {@link RemoteFuture#thenCompose}.
+         *
+         * @param value the result of the previous future
+         * @return      the new value
+         * @throws Exception if the function fails
+         */
+        public B apply(A value) throws Exception;
+
+    }
+
+    /**
+     * Returns a future that has already completed with the specified value.
+     *
+     * @param <T>   the type of the value
+     * @param value the value
+     * @return      the completed future
+     */
+    public static <T> RemoteFuture<T> completed(T value) {
+        RemoteFuture<T> future = new RemoteFuture<T>();
+        future.onSuccess(value);
+        return future;
+    }
+
+    /**
+     * Returns a future that has already failed with the specified exception.
+     *
+     * @param <T>   the type of the value
+     * @param e     the exception
+     * @return      the failed future
+     */
+    public static <T> RemoteFuture<T> failed(RemoteException e) {
+        RemoteFuture<T> future = new RemoteFuture<T>();
+        future.onFailure(e);
+        return future;
+    }
+
+    /**
+     * Returns a future that completes when all the specified futures have
+     * completed.
+     * <p>
+     * The returned future fails with the exception of the first future
+     * that fails, otherwise it succeeds with a null value.
+     *
+     * @param futures   the futures to wait for
+     * @return          the combined future
+     */
+    public static RemoteFuture<Void> allOf(RemoteFuture<?> ... futures) {
+        final RemoteFuture<Void> all = new RemoteFuture<Void>();
+        if (futures.length == 0) {
+            all.onSuccess(null);
+            return all;
+        }
+        final int[] remaining = new int[] { futures.length };
+        for (RemoteFuture<?> future : futures)
+            future.whenDone(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (remaining) {
+                        if (--remaining[0] > 0) return;
+                    }
+                    all.onSuccess(null);
+                }
+            }, all);
+        return all;
+    }
+
+    private boolean done = false;
+    private T value = null;
+    private RemoteException exception = null;
+    private List<Callback<T>> callbacks = null;
+
+    /**
+     * Creates a new, incomplete future.
+     */
+    public RemoteFuture() {
+        super();
+    }
+
+    /**
+     * Completes this future with the specified value.
+     * <p>
+     * Has no effect if this future has already completed.
+     *
+     * @param t the value
+     */
+    @Override
+    public final void onSuccess(T t) {
+        complete(t, null);
+    }
+
+    /**
+     * Fails this future with the specified exception.
+     * <p>
+     * Has no effect if this future has already completed.
+     *
+     * @param e the exception
+     */
+    @Override
+    public final void onFailure(RemoteException e) {
+        complete(null, e);
+    }
+
+    /**
+     * Returns true if this future has completed or failed.
+     *
+     * @return true if this future is done
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns true if this future has failed.
+     *
+     * @return true if this future has failed
+     */
+    public synchronized boolean isFailed() {
+        return done && (exception != null);
+    }
+
+    /**
+     * Returns the value of this future, or null if it hasn't completed
+     * or has failed.
+     *
+     * @return the value
+     */
+    public synchronized T getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the exception this future failed with, or null if it hasn't
+     * failed.
+     *
+     * @return the exception
+     */
+    public synchronized RemoteException getException() {
+        return exception;
+    }
+
+    /**
+     * Adds a callback to be called when this future completes.
+     * <p>
+     * If this future has already completed, the callback is called
+     * immediately.
+     *
+     * @param cb    the callback, can be null
+     * @return      this future
+     */
+    public RemoteFuture<T> whenComplete(Callback<T> cb) {
+        if (cb == null) return this;
+        synchronized (this) {
+            if (! done) {
+                if (callbacks == null)
+                    callbacks = new ArrayList<Callback<T>>();
+                callbacks.add(cb);
+                return this;
+            }
+        }
+        callback(cb);
+        return this;
+    }
+
+    /**
+     * Returns a future that completes with the result of applying the
+     * specified function to the value of this future.
+     * <p>
+     * If this future fails, the returned future fails with the same exception.
+     *
+     * @param <R>   the type of the new value
+     * @param fn    the function
+     * @return      the new future
+     */
+    public <R> RemoteFuture<R> thenApply(final Function<? super T,? extends R> fn) {
+        final RemoteFuture<R> next = new RemoteFuture<R>();
+        whenComplete(new Callback<T>() {
+            @Override
+            public void onSuccess(T t) {
+                R r;
+                try {
+                    r = fn.apply(t);
+                } catch (Exception e) {
+                    next.onFailure(toRemoteException(e));
+                    return;
+                }
+                next.onSuccess(r);
+            }
+            @Override
+            public void onFailure(RemoteException e) {
+                next.onFailure(e);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Returns a future that completes with the result of the future
+     * returned by applying the specified function to the value of this
+     * future.
+     * <p>
+     * This is used to start another asynchronous call after this one
+     * completes. If this future fails, the returned future fails with the
+     * same exception and the function isn't called.
+     *
+     * @param <R>   the type of the new value
+     * @param fn    the function
+     * @return      the new future
+     */
+    public <R> RemoteFuture<R> thenCompose(final Function<? super T,RemoteFuture<R>> fn) {
+        final RemoteFuture<R> next = new RemoteFuture<R>();
+        whenComplete(new Callback<T>() {
+            @Override
+            public void onSuccess(T t) {
+                RemoteFuture<R> future;
+                try {
+                    future = fn.apply(t);
+                } catch (Exception e) {
+                    next.onFailure(toRemoteException(e));
+                    return;
+                }
+                if (future == null)
+                    next.onSuccess(null);
+                else
+                    future.whenComplete(next);
+            }
+            @Override
+            public void onFailure(RemoteException e) {
+                next.onFailure(e);
+            }
+        });
+        return next;
+    }
+
+    private void complete(T t, RemoteException e) {
+        List<Callback<T>> cbs;
+        synchronized (this) {
+            if (done) return;
+            done = true;
+            value = t;
+            exception = e;
+            cbs = callbacks;
+            callbacks = null;
+        }
+        if (cbs != null)
+            for (Callback<T> cb : cbs)
+                callback(cb);
+    }
+
+    private void callback(Callback<T> cb) {
+        if (exception != null)
+            cb.onFailure(exception);
+        else
+            cb.onSuccess(value);
+    }
+
+    // calls run when this future succeeds, fails the other future if it fails
+    private void whenDone(final Runnable run, final RemoteFuture<?> other) {
+        whenComplete(new Callback<T>() {
+            @Override
+            public void onSuccess(T t) {
+                run.run();
+            }
+            @Override
+            public void onFailure(RemoteException e) {
+                other.onFailure(e);
+            }
+        });
+    }
+
+    private static RemoteException toRemoteException(Exception e) {
+        if (e instanceof RemoteException) return (RemoteException)e;
+        return new RemoteException("%s", e.getMessage());
+    }
+
+}
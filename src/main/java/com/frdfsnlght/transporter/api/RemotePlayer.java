@@ -73,6 +73,13 @@ public interface RemotePlayer {
      */
     public void getRemoteLocation(Callback<RemoteLocation> cb);
 
+    /**
+     * Returns the location where the player is located.
+     *
+     * @return a future that completes when the call completes
+     */
+    public RemoteFuture<RemoteLocation> getRemoteLocation();
+
     /**
      * Sends a message to the player.
      *
@@ -81,6 +88,14 @@ public interface RemotePlayer {
      */
     public void sendMessage(Callback<Void> cb, String msg);
 
+    /**
+     * Sends a message to the player.
+     *
+     * @param msg   the message to send
+     * @return a future that completes when the call completes
+     */
+    public RemoteFuture<Void> sendMessage(String msg);
+
     /**
      * Sends a raw message to the player.
      *
@@ -89,6 +104,14 @@ public interface RemotePlayer {
      */
     public void sendRawMessage(Callback<Void> cb, String msg);
 
+    /**
+     * Sends a raw message to the player.
+     *
+     * @param msg   the message to send
+     * @return a future that completes when the call completes
+     */
+    public RemoteFuture<Void> sendRawMessage(String msg);
+
     /**
      * Sends a private message to the player.
      *
@@ -105,6 +105,15 @@ public interface RemoteServer {
      */
     public void broadcast(Callback<Integer> cb, String message, String permission);
 
+    /**
+     * Broadcasts a message to all players on the remote server with the specified permission.
+     *
+     * @param message       the message
+     * @param permission    the permission
+     * @return              a future that completes when the call completes
+     */
+    public RemoteFuture<Integer> broadcast(String message, String permission);
+
     /**
      * Broadcasts a message to all players on the remote server.
      *
@@ -113,6 +122,14 @@ public interface RemoteServer {
      */
     public void broadcastMessage(Callback<Integer> cb, String message);
 
+    /**
+     * Broadcasts a message to all players on the remote server.
+     *
+     * @param message       the message
+     * @return              a future that completes when the call completes
+     */
+    public RemoteFuture<Integer> broadcastMessage(String message);
+
     /**
      * Executes a command on the remote server.
      *
@@ -122,6 +139,15 @@ public interface RemoteServer {
      */
     public void dispatchCommand(Callback<Boolean> cb, CommandSender sender, String commandLine);
 
+    /**
+     * Executes a command on the remote server.
+     *
+     * @param sender        the sender of the command
+     * @param commandLine   the command to execute
+     * @return              a future that completes when the call completes
+     */
+    public RemoteFuture<Boolean> dispatchCommand(CommandSender sender, String commandLine);
+
     /**
      * Returns the configured default game mode on the remote server.
      *
@@ -129,6 +155,13 @@ public interface RemoteServer {
      */
     public void getDefaultGameMode(Callback<GameMode> cb);
 
+    /**
+     * Returns the configured default game mode on the remote server.
+     *
+     * @return      a future that completes when the call completes
+     */
+    public RemoteFuture<GameMode> getDefaultGameMode();
+
     /**
      * Returns the configured name of the remote server.
      * <p>
@@ -139,6 +172,17 @@ public interface RemoteServer {
      */
     public void getName(Callback<String> cb);
 
+    /**
+     * Returns the configured name of the remote server.
+     * <p>
+     * This is the future returning version of {@link #getName(Callback)}.
+     * It has a different name because {@link #getName()} returns the local
+     * name of the server.
+     *
+     * @return      a future that completes when the call completes
+     */
+    public RemoteFuture<String> getServerName();
+
     /**
      * Returns the Id of the remote server.
      *
@@ -146,6 +190,13 @@ public interface RemoteServer {
      */
     public void getServerId(Callback<String> cb);
 
+    /**
+     * Returns the Id of the remote server.
+     *
+     * @return      a future that completes when the call completes
+     */
+    public RemoteFuture<String> getServerId();
+
     /**
      * Returns the version of the remote server.
      *
@@ -153,6 +204,48 @@ public interface RemoteServer {
      */
     public void getVersion(Callback<String> cb);
 
+    /**
+     * Returns the version of the remote server.
+     *
+     * @return      a future that completes when the call completes
+     */
+    public RemoteFuture<String> getVersion();
+
+    /**
+     * Starts a batch of calls to the remote server.
+     * <p>
+     * Calls made to this server, or to its worlds and players, after this
+     * method is called are held until {@link #sendBatch()} is called and
+     * are then sent together, so they only cost one round trip. Batches can
+     * be nested, the calls are sent when the outermost batch is sent.
+     * <p>
+     * Every call to this method must be matched by a call to
+     * {@link #sendBatch()}, so call it in a <code>finally</code> block:
+     * <pre>
+     * server.startBatch();
+     * try {
+     *     ...
+     * } finally {
+     *     server.sendBatch();
+     * }
+     * </pre>
+     * A batch that is still open when the current task on the main server
+     * thread finishes is sent anyway and a warning is logged.
+     * <p>
+     * This method must be called on the main server thread.
+     */
+    public void startBatch();
+
+    /**
+     * Sends the calls made since the matching call to {@link #startBatch()}.
+     * <p>
+     * Calling this method without an open batch does nothing, so it is
+     * always safe to call in a <code>finally</code> block.
+     * <p>
+     * This method must be called on the main server thread.
+     */
+    public void sendBatch();
+
     /* Options */
 
     /**
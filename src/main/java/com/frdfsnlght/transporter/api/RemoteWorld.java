@@ -46,6 +46,13 @@ public interface RemoteWorld {
      */
     public void getDifficulty(Callback<Difficulty> cb);
 
+    /**
+     * Returns the difficulty setting of the world.
+     *
+     * @return a future that completes when the call completes
+     */
+    public RemoteFuture<Difficulty> getDifficulty();
+
     /**
      * Returns the environment setting of the world.
      *
@@ -53,6 +60,13 @@ public interface RemoteWorld {
      */
     public void getEnvironment(Callback<Environment> cb);
 
+    /**
+     * Returns the environment setting of the world.
+     *
+     * @return a future that completes when the call completes
+     */
+    public RemoteFuture<Environment> getEnvironment();
+
     /**
      * Returns the full time of the world.
      *
@@ -60,6 +74,13 @@ public interface RemoteWorld {
      */
     public void getFullTime(Callback<Long> cb);
 
+    /**
+     * Returns the full time of the world.
+     *
+     * @return a future that completes when the call completes
+     */
+    public RemoteFuture<Long> getFullTime();
+
     /**
      * Returns the seed setting of the world.
      *
@@ -67,6 +88,13 @@ public interface RemoteWorld {
      */
     public void getSeed(Callback<Long> cb);
 
+    /**
+     * Returns the seed setting of the world.
+     *
+     * @return a future that completes when the call completes
+     */
+    public RemoteFuture<Long> getSeed();
+
     /**
      * Returns the time setting of the world.
      *
@@ -74,4 +102,11 @@ public interface RemoteWorld {
      */
     public void getTime(Callback<Long> cb);
 
+    /**
+     * Returns the time setting of the world.
+     *
+     * @return a future that completes when the call completes
+     */
+    public RemoteFuture<Long> getTime();
+
 }
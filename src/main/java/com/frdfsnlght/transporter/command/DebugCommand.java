@@ -18,8 +18,11 @@ package com.frdfsnlght.transporter.command;
 import com.frdfsnlght.transporter.Context;
 import com.frdfsnlght.transporter.Gates;
 import com.frdfsnlght.transporter.PlayerListenerImpl;
+import com.frdfsnlght.transporter.Server;
 import com.frdfsnlght.transporter.Utils;
+import com.frdfsnlght.transporter.WorkQueue;
 import com.frdfsnlght.transporter.api.TransporterException;
+import com.frdfsnlght.transporter.net.Network;
 import java.util.ArrayList;
 import java.util.List;
 import org.bukkit.command.Command;
@@ -42,8 +45,11 @@ public class DebugCommand extends TrpCommandProcessor {
     public List<String> getUsage(Context ctx) {
         if (! ctx.isConsole()) return null;
         List<String> cmds = new ArrayList<String>();
-        if (ctx.isConsole())
+        if (ctx.isConsole()) {
             cmds.add(getPrefix(ctx) + GROUP + "submit <id>");
+            cmds.add(getPrefix(ctx) + GROUP + "queue [reset]");
+            cmds.add(getPrefix(ctx) + GROUP + "messages");
+        }
         if (ctx.isPlayer())
             cmds.add(getPrefix(ctx) + GROUP + "interact");
         return cmds;
@@ -84,6 +90,26 @@ public class DebugCommand extends TrpCommandProcessor {
             return;
         }
 
+        if ("queue".startsWith(subCmd)) {
+            for (WorkQueue.Priority p : WorkQueue.Priority.values())
+                ctx.send("%-12s %d queued", p.toString().toLowerCase(), WorkQueue.getQueueDepth(p));
+            ctx.send("%-12s %d queued", "delayed", WorkQueue.getDelayedDepth());
+            ctx.send("%-12s %d pending", "timers", Network.getPendingTimers());
+            ctx.send("tasks run: %d in %d ms", WorkQueue.getTasksRun(), WorkQueue.getTotalTime() / 1000000);
+            ctx.send("last tick: %d us, max tick: %d us", WorkQueue.getLastTickTime() / 1000, WorkQueue.getMaxTickTime() / 1000);
+            ctx.send("over budget ticks: %d, tasks carried over: %d", WorkQueue.getOverBudgetTicks(), WorkQueue.getCarriedOver());
+            if ((! args.isEmpty()) && "reset".startsWith(args.get(0).toLowerCase())) {
+                WorkQueue.resetCounters();
+                ctx.send("counters reset");
+            }
+            return;
+        }
+
+        if ("messages".startsWith(subCmd)) {
+            Server.dumpMessageStats(ctx);
+            return;
+        }
+
         if ("gatemaps".startsWith(subCmd)) {
             Gates.dumpMaps();
             return;
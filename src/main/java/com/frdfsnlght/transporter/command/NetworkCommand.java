@@ -89,7 +89,7 @@ public class NetworkCommand  extends TrpCommandProcessor {
                 else {
                     ctx.send("%d banned addresses:", banned.size());
                     for (String pattern : banned)
-                        ctx.send("  %s", pattern);
+                        ctx.send("  %s (%d hits)", pattern, Network.getBannedAddressHits(pattern));
                 }
                 return;
             }
@@ -100,10 +100,10 @@ public class NetworkCommand  extends TrpCommandProcessor {
 
             if ("add".startsWith(subCmd)) {
                 Permissions.require(ctx.getPlayer(), "trp.network.ban.add");
-                if (Network.addBannedAddress(args.get(0)))
+                if (Network.addBannedAddress(pattern))
                     ctx.sendLog("added ban");
                 else
-                    throw new CommandException("'%s' is already banned");
+                    throw new CommandException("'%s' is already banned", pattern);
                 return;
             }
 
@@ -112,10 +112,10 @@ public class NetworkCommand  extends TrpCommandProcessor {
                 if (pattern.equals("*")) {
                     Network.removeAllBannedAddresses();
                     ctx.sendLog("removed all bans");
-                } else if (Network.removeBannedAddress(args.get(0)))
+                } else if (Network.removeBannedAddress(pattern))
                     ctx.sendLog("removed ban");
                 else
-                    throw new CommandException("'%s' is not banned");
+                    throw new CommandException("'%s' is not banned", pattern);
                 return;
             }
             throw new CommandException("do what with a ban?");
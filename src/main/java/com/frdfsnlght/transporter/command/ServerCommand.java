@@ -90,8 +90,8 @@ public class ServerCommand extends TrpCommandProcessor {
                                 (server.isEnabled() ? "up" : "down"),
                                 (! server.isConnectionConnected() ? "down" :
                                     String.format("up %s %s v%s",
-                                        server.isIncoming() ? "incoming" : "outgoing",
-                                        server.getConnection().getName(),
+                                        server.isRelayed() ? "relayed" : (server.isIncoming() ? "incoming" : "outgoing"),
+                                        (server.isRelayed() ? "via " + server.getRelayVia().getName() : server.getConnection().getName()),
                                         server.getRemoteVersion()))
                             );
                     ctx.send("    publicAddress:        %s (%s)",
@@ -122,6 +122,14 @@ public class ServerCommand extends TrpCommandProcessor {
                         ctx.send("    remoteBungeeServer:   %s",
                                 (server.getRemoteBungeeServer() == null) ?
                                     "-" : server.getRemoteBungeeServer());
+                        if (server.isRelayed()) continue;
+                        ctx.send("    encryption:           %s",
+                                server.getConnection().getSessionCipherName());
+                        ctx.send("    queuedBytes:          %s",
+                                server.getConnection().getQueuedBytes());
+                        ctx.send("    dropped/coalesced:    %s/%s",
+                                server.getConnection().getDroppedMessages(),
+                                server.getConnection().getCoalescedMessages());
                     }
                 }
             }
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * An immutable set of address patterns.
+ * <p>
+ * Addresses and CIDR blocks, IPv4 or IPv6, are compiled into a binary
+ * trie over the address bits so matching costs at most one step per bit.
+ * Anything else is treated as a regular expression matched against the
+ * textual address. Changes are made by building a new matcher that shares
+ * the existing entries, so hit counts are kept.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class AddressMatcher {
+
+    private static final Pattern IPV4_PATTERN = Pattern.compile("^\\d{1,3}(\\.\\d{1,3}){3}$");
+    private static final Pattern IPV6_PATTERN = Pattern.compile("^[0-9a-fA-F:.]*:[0-9a-fA-F:.]*$");
+
+    static final class Entry {
+
+        private final String pattern;
+        private final byte[] prefix;
+        private final int prefixLength;
+        private final Pattern regex;
+        private final AtomicLong hits = new AtomicLong();
+
+        // throws IllegalArgumentException if the pattern is neither a valid address nor a valid regex
+        Entry(String pattern) {
+            this.pattern = pattern;
+            String addr = pattern;
+            int bits = -1;
+            int pos = pattern.indexOf('/');
+            if (pos != -1) {
+                addr = pattern.substring(0, pos);
+                try {
+                    bits = Integer.parseInt(pattern.substring(pos + 1));
+                } catch (NumberFormatException e) {
+                    addr = null;
+                }
+            }
+            byte[] address = (addr == null) ? null : parseAddress(addr);
+            if (address != null) {
+                if (bits == -1) bits = address.length * 8;
+                if ((bits < 0) || (bits > (address.length * 8)))
+                    throw new IllegalArgumentException("invalid prefix length in '" + pattern + "'");
+                prefix = address;
+                prefixLength = bits;
+                regex = null;
+            } else {
+                prefix = null;
+                prefixLength = 0;
+                try {
+                    regex = Pattern.compile(pattern);
+                } catch (PatternSyntaxException pse) {
+                    throw new IllegalArgumentException("invalid pattern: " + pse.getMessage());
+                }
+            }
+        }
+
+        String getPattern() {
+            return pattern;
+        }
+
+        long getHits() {
+            return hits.get();
+        }
+
+        boolean isRegex() {
+            return regex != null;
+        }
+
+    }
+
+    // only address literals are accepted, nothing is ever looked up
+    private static byte[] parseAddress(String addr) {
+        if ((! IPV4_PATTERN.matcher(addr).matches()) && (! IPV6_PATTERN.matcher(addr).matches()))
+            return null;
+        try {
+            return InetAddress.getByName(addr).getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static final class Node {
+        final Node[] children = new Node[2];
+        Entry entry;
+    }
+
+    private final List<Entry> entries;
+    private final Node ipv4Root = new Node();
+    private final Node ipv6Root = new Node();
+    private final List<Entry> regexEntries = new ArrayList<Entry>();
+
+    AddressMatcher(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+        for (Entry entry : entries) {
+            if (entry.isRegex())
+                regexEntries.add(entry);
+            else
+                insert((entry.prefix.length == 4) ? ipv4Root : ipv6Root, entry);
+        }
+    }
+
+    private void insert(Node node, Entry entry) {
+        for (int i = 0; i < entry.prefixLength; i++) {
+            int bit = (entry.prefix[i >> 3] >> (7 - (i & 7))) & 1;
+            if (node.children[bit] == null)
+                node.children[bit] = new Node();
+            node = node.children[bit];
+        }
+        if (node.entry == null)
+            node.entry = entry;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    Entry find(String pattern) {
+        for (Entry entry : entries)
+            if (entry.pattern.equals(pattern)) return entry;
+        return null;
+    }
+
+    // returns the first entry that matches the address, or null
+    Entry match(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        Node node = (address instanceof Inet4Address) ? ipv4Root : ipv6Root;
+        int numBits = bytes.length * 8;
+        for (int i = 0; node != null; i++) {
+            if (node.entry != null)
+                return hit(node.entry);
+            if (i == numBits) break;
+            node = node.children[(bytes[i >> 3] >> (7 - (i & 7))) & 1];
+        }
+        if (regexEntries.isEmpty()) return null;
+        String addr = address.getHostAddress();
+        for (Entry entry : regexEntries)
+            if (entry.regex.matcher(addr).matches())
+                return hit(entry);
+        return null;
+    }
+
+    private Entry hit(Entry entry) {
+        entry.hits.incrementAndGet();
+        return entry;
+    }
+
+}
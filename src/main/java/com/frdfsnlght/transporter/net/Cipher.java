@@ -16,9 +16,10 @@
 
 package com.frdfsnlght.transporter.net;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.security.Key;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -42,20 +43,30 @@ public final class Cipher {
     private static final long randomP2 = 0;
     private static final long randomN = Integer.MAX_VALUE;
 
+    private static final int TRAILER_SIZE = 4;
+
     // The randomSeed value was arbitrarily choosen, but shouldn't be
     // changed if you ever expect to decrypt something you've already
     // encrypted before the value was changed!
     private static long randomSeed = 4587243876L;
-    private static final List<Byte> scramble;
+
+    // scramble maps a position to a byte value, unscramble maps an unsigned
+    // byte value back to its position
+    private static final byte[] scramble = new byte[256];
+    private static final int[] unscramble = new int[256];
 
     static {
         List<Byte> seed = new ArrayList<Byte>(256);
-        scramble = new ArrayList<Byte>(256);
+        List<Byte> order = new ArrayList<Byte>(256);
         for (int i = 0; i < 256; i++)
             seed.add((byte)(i + Byte.MIN_VALUE));
         while (seed.size() > 0)
-            //scramble.add(seed.remove(random(seed.size())));
-            scramble.add(seed.remove(0));
+            //order.add(seed.remove(random(seed.size())));
+            order.add(seed.remove(0));
+        for (int i = 0; i < 256; i++) {
+            scramble[i] = order.get(i);
+            unscramble[scramble[i] & 0xff] = i;
+        }
     }
 
     // Use a custom random number generator because we can't rely on the
@@ -68,12 +79,13 @@ public final class Cipher {
         return (int)(((double)randomSeed / (double)randomN) * (double)range);
     }
 
-    private ByteArrayOutputStream buffer;
+    private byte[] buffer = new byte[0];
+    private int bufferLength;
+    private Random padRandom = null;
     private int padSize;
     private int mode;
     private byte[] key;
     private int keyIndex;
-    private int factor1;
     private int factor2;
 
     /**
@@ -198,9 +210,9 @@ public final class Cipher {
      * Resets the cipher, canceling any de/encryption currently in progress.
      */
     public void reset() {
-        buffer = new ByteArrayOutputStream();
+        bufferLength = 0;
         keyIndex = 0;
-        factor1 = factor2 = 0;
+        factor2 = 0;
         mode = None;
     }
 
@@ -233,28 +245,10 @@ public final class Cipher {
     public void update(byte data) {
         if (mode == None)
             throw new IllegalStateException("encrypt/decrypt mode not set");
-
-        int posIn = scramble.indexOf(data);
-        int adj = scramble.indexOf(key[keyIndex++]);
-        if (keyIndex >= key.length) keyIndex = 0;
-
-        factor1 = factor2 + adj;
-
-        int posOut;
-        if (mode == Encrypt)
-            posOut = posIn + factor1;
-        else
-            posOut = posIn - factor1;
-
-        posOut = (posOut % scramble.size());
-        if (posOut < 0) posOut += scramble.size();
-
-        if (mode == Encrypt)
-            factor2 = factor1 + posOut;
-        else
-            factor2 = factor1 + posIn;
-
-        buffer.write(scramble.get(posOut));
+        ensureBuffer(1);
+        buffer[bufferLength] = data;
+        transform(buffer, bufferLength, 1);
+        bufferLength++;
     }
 
     /**
@@ -263,8 +257,7 @@ public final class Cipher {
      */
     public void update(byte[] data) {
         if (data == null) return;
-        for (byte b : data)
-            update(b);
+        update(data, 0, data.length);
     }
 
     /**
@@ -275,8 +268,12 @@ public final class Cipher {
      */
     public void update(byte[] data, int offset, int length) {
         if (data == null) return;
-        for (int i = offset; i < (i + length); i++)
-            update(data[i]);
+        if (mode == None)
+            throw new IllegalStateException("encrypt/decrypt mode not set");
+        ensureBuffer(length);
+        System.arraycopy(data, offset, buffer, bufferLength, length);
+        transform(buffer, bufferLength, length);
+        bufferLength += length;
     }
 
     /**
@@ -290,38 +287,19 @@ public final class Cipher {
         try {
             if (padSize > 0) {
                 if (mode == Encrypt) {
-                    int extraBytes = padSize - ((buffer.size() + 4) % padSize);
-                    if (extraBytes == padSize) extraBytes = 0;
-                    Random r = new Random();
-                    for (int i = 0; i < extraBytes; i++)
-                        update((byte)(r.nextInt(256) + Byte.MIN_VALUE));
-                    update((byte)((extraBytes >> 24) & 0x000000ff));
-                    update((byte)((extraBytes >> 16) & 0x000000ff));
-                    update((byte)((extraBytes >> 8) & 0x000000ff));
-                    update((byte)(extraBytes & 0x000000ff));
-                    return buffer.toByteArray();
+                    int length = getEncryptedLength(bufferLength);
+                    ensureBuffer(length - bufferLength);
+                    int pos = bufferLength;
+                    bufferLength = pad(buffer, 0, bufferLength);
+                    transform(buffer, pos, bufferLength - pos);
+                    return Arrays.copyOf(buffer, bufferLength);
                 } else {
-                    byte[] tmp = buffer.toByteArray();
-                    if ((tmp.length % padSize) != 0) {
-                        // decryption failed
-                        return new byte[0];
-                    }
-                    int extraBytes =
-                            ((int)tmp[tmp.length - 1] & 0x000000ff) |
-                            (((int)tmp[tmp.length - 2] << 8) & 0x0000ff00) |
-                            (((int)tmp[tmp.length - 3] << 16) & 0x00ff0000) |
-                            (((int)tmp[tmp.length - 4] << 24) & 0xff000000);
-                    if ((extraBytes >= padSize) || (extraBytes < 0)) {
-                        // something went wrong
-                        return new byte[0];
-                    }
-
-                    byte[] data = new byte[tmp.length - 4 - extraBytes];
-                    System.arraycopy(tmp, 0, data, 0, data.length);
-                    return data;
+                    int length = unpad(buffer, 0, bufferLength);
+                    if (length == -1) return new byte[0];
+                    return Arrays.copyOf(buffer, length);
                 }
             } else
-                return buffer.toByteArray();
+                return Arrays.copyOf(buffer, bufferLength);
         } finally {
             reset();
         }
@@ -345,4 +323,150 @@ public final class Cipher {
         return doFinal();
     }
 
+    /**
+     * Returns the length of the cipher data produced when encrypting
+     * the specified length of plain text data with the current pad size.
+     * @param length the length of the plain text data
+     * @return the length of the cipher data
+     */
+    public int getEncryptedLength(int length) {
+        if (padSize == 0) return length;
+        int extraBytes = padSize - ((length + TRAILER_SIZE) % padSize);
+        if (extraBytes == padSize) extraBytes = 0;
+        return length + extraBytes + TRAILER_SIZE;
+    }
+
+    /**
+     * Completes a de/encryption cycle over a portion of an array without
+     * copying the data, and resets the cipher instance.
+     * <p>
+     * When encrypting, the array must have room for
+     * {@link #getEncryptedLength} bytes starting at the offset, since the
+     * padding is written after the plain text data.
+     * </p>
+     * @param data the array containing the data
+     * @param offset the offset within the array where the data is located
+     * @param length the length of the data in the array
+     * @return the length of the de/encrypted data starting at the offset,
+     * or -1 if decryption failed
+     */
+    public int doFinalInPlace(byte[] data, int offset, int length) {
+        if (mode == None)
+            throw new IllegalStateException("encrypt/decrypt mode not set");
+        if (bufferLength != 0)
+            throw new IllegalStateException("cipher stream has pending data");
+        try {
+            if (mode == Encrypt) {
+                if (padSize > 0)
+                    length = pad(data, offset, length);
+                transform(data, offset, length);
+                return length;
+            } else {
+                transform(data, offset, length);
+                if (padSize > 0)
+                    return unpad(data, offset, length);
+                return length;
+            }
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Completes a de/encryption cycle over the remaining data in a buffer
+     * without copying the data, and resets the cipher instance.
+     * <p>
+     * When encrypting, the buffer's capacity must allow for
+     * {@link #getEncryptedLength} bytes starting at its position.
+     * On return, the buffer's limit is set to the end of the de/encrypted data.
+     * </p>
+     * @param data the buffer containing the data
+     * @return the length of the de/encrypted data, or -1 if decryption failed
+     */
+    public int doFinalInPlace(ByteBuffer data) {
+        int length;
+        if (data.hasArray()) {
+            length = doFinalInPlace(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            int pos = data.position();
+            byte[] tmp = new byte[(mode == Encrypt) ? getEncryptedLength(data.remaining()) : data.remaining()];
+            data.get(tmp, 0, data.remaining());
+            length = doFinalInPlace(tmp, 0, data.limit() - pos);
+            if (length != -1) {
+                data.limit(pos + length);
+                data.position(pos);
+                data.put(tmp, 0, length);
+                data.position(pos);
+            }
+            return length;
+        }
+        if (length != -1)
+            data.limit(data.position() + length);
+        return length;
+    }
+
+    // transforms data in place, the hot loop of the cipher
+    private void transform(byte[] data, int offset, int length) {
+        final byte[] k = key;
+        final boolean encrypt = mode == Encrypt;
+        int ki = keyIndex;
+        int f2 = factor2;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int posIn = unscramble[data[i] & 0xff];
+            int f1 = f2 + unscramble[k[ki++] & 0xff];
+            if (ki >= k.length) ki = 0;
+            int posOut;
+            if (encrypt) {
+                posOut = (posIn + f1) & 0xff;
+                f2 = f1 + posOut;
+            } else {
+                posOut = (posIn - f1) & 0xff;
+                f2 = f1 + posIn;
+            }
+            data[i] = scramble[posOut];
+        }
+        keyIndex = ki;
+        factor2 = f2;
+    }
+
+    // writes random padding and the trailer after the plain text data,
+    // returns the padded length
+    private int pad(byte[] data, int offset, int length) {
+        int extraBytes = getEncryptedLength(length) - length - TRAILER_SIZE;
+        if (padRandom == null) padRandom = new Random();
+        int pos = offset + length;
+        for (int i = 0; i < extraBytes; i++)
+            data[pos++] = (byte)(padRandom.nextInt(256) + Byte.MIN_VALUE);
+        data[pos++] = (byte)((extraBytes >> 24) & 0x000000ff);
+        data[pos++] = (byte)((extraBytes >> 16) & 0x000000ff);
+        data[pos++] = (byte)((extraBytes >> 8) & 0x000000ff);
+        data[pos++] = (byte)(extraBytes & 0x000000ff);
+        return pos - offset;
+    }
+
+    // reads the trailer from decrypted data, returns the plain text length
+    // or -1 if the data isn't valid
+    private int unpad(byte[] data, int offset, int length) {
+        if (((length % padSize) != 0) || (length < TRAILER_SIZE)) {
+            // decryption failed
+            return -1;
+        }
+        int end = offset + length;
+        int extraBytes =
+                ((int)data[end - 1] & 0x000000ff) |
+                (((int)data[end - 2] << 8) & 0x0000ff00) |
+                (((int)data[end - 3] << 16) & 0x00ff0000) |
+                (((int)data[end - 4] << 24) & 0xff000000);
+        if ((extraBytes >= padSize) || (extraBytes < 0)) {
+            // something went wrong
+            return -1;
+        }
+        return length - TRAILER_SIZE - extraBytes;
+    }
+
+    private void ensureBuffer(int needed) {
+        if ((bufferLength + needed) <= buffer.length) return;
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, bufferLength + needed));
+    }
+
 }
@@ -19,15 +19,25 @@ import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Formatter;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import com.frdfsnlght.transporter.Binary;
 import com.frdfsnlght.transporter.Global;
 import com.frdfsnlght.transporter.Server;
 import com.frdfsnlght.transporter.Servers;
@@ -41,37 +51,136 @@ import com.frdfsnlght.transporter.Utils;
 public final class Connection {
 
     private static final int HANDSHAKE_TIMEOUT = 5000;
-    private static final int PROTOCOL_VERSION = 8;
+    private static final int PROTOCOL_VERSION = 15;
+    private static final int MIN_PROTOCOL_VERSION = 8;
+    private static final int BINARY_PROTOCOL_VERSION = 9;
+    private static final int COMPRESSION_PROTOCOL_VERSION = 10;
+    private static final int BATCH_PROTOCOL_VERSION = 11;
+    private static final int API_BATCH_PROTOCOL_VERSION = 12;
+    private static final int DELTA_REFRESH_PROTOCOL_VERSION = 13;
+    private static final int RELAY_PROTOCOL_VERSION = 14;
+    private static final int CHUNK_PROTOCOL_VERSION = 15;
     public static final int PROTOCOL_TIMEOUT = 8000;    // 8 seconds
 
     private static final byte ENCRYPTED_FLAG = 0x01;
+    private static final byte BINARY_FLAG = 0x02;
+    private static final byte SESSION_FLAG = 0x04;
+    private static final byte COMPRESSED_FLAG = 0x08;
+    private static final byte BATCH_FLAG = 0x10;
+    private static final byte CHUNK_FLAG = 0x20;
+    private static final byte MORE_FLAG = 0x40;
     private static final int CIPHER_PAD_SIZE = 256;
+    private static final int MAX_INFLATED_SIZE = 64 * 1024 * 1024;
+    private static final int MIN_READ_BUFFER_SIZE = 8192;
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final int WIRE_BUFFER_SIZE = 65536;
+    // bigger messages are sent in pieces so other messages can go between them
+    private static final int CHUNK_SIZE = 256 * 1024;
+    // the record length is 3 bytes
+    private static final int MAX_RECORD_SIZE = 0x00ffffff;
+
+    // outbound lanes, in the order they're sent
+    enum Lane {
+        CONTROL,
+        API,
+        CHAT;
+    }
+
+    private static final Lane[] LANES = Lane.values();
+    private static final Map<String,Lane> MESSAGE_LANES = new HashMap<String,Lane>();
+    private static final Set<String> DROPPABLE_MESSAGES = new HashSet<String>();
+    private static final Set<String> COALESCED_MESSAGES = new HashSet<String>();
+
+    static {
+        // anything not listed here goes in the control lane
+        MESSAGE_LANES.put("apiRequest", Lane.API);
+        MESSAGE_LANES.put("apiResult", Lane.API);
+        for (String command : new String[] {
+                "chat", "privateMessage", "playerChangeWorld", "playerJoin",
+                "playerQuit", "playerKick", "playerDeath" })
+            MESSAGE_LANES.put(command, Lane.CHAT);
+
+        // API messages are never dropped, a lost result would only show up as a timeout
+        DROPPABLE_MESSAGES.add("chat");
+        DROPPABLE_MESSAGES.add("privateMessage");
+
+        // keyed by player
+        COALESCED_MESSAGES.add("playerChangeWorld");
+    }
+    private static final int MAX_IDLE_READ_BUFFER_SIZE = 65536;
 
     private SocketChannel channel;
+    private volatile Reactor reactor = null;
+    // set instead of the channel for connections through shared memory
+    private volatile LocalLink local = null;
     private String name = null;
     private Server server = null;
     private boolean incoming = false;
     private String connectAddress;
     private State state = State.NONE;
+    private int protocolVersion = MIN_PROTOCOL_VERSION;
     private long lastMessageSentTime = 0;
     private long lastMessageReceivedTime = 0;
 
-    private byte[] readBuffer = null;
-    private final List<byte[]> writeBuffers = new ArrayList<byte[]>();
+    private ByteBuffer readBuffer = null;
+    // Messages wait in their lane until there's room on the wire, so the
+    // lanes can be reordered, coalesced or trimmed. Guarded by writeBuffers.
+    private final Deque<ByteBuffer> writeBuffers = new ArrayDeque<ByteBuffer>();
+    private long wireBytes = 0;
+    private final List<Deque<Pending>> lanes = new ArrayList<Deque<Pending>>();
+    private final long[] laneBytes = new long[LANES.length];
+    private int pendingCount = 0;
+    private final Map<String,Pending> coalescing = new HashMap<String,Pending>();
+    private long droppedMessages = 0;
+    private long coalescedMessages = 0;
+    // the only message being sent in chunks. Guarded by writeBuffers.
+    private Pending chunking = null;
+
+    // the chunked message being received, only used by the network thread
+    private byte[] chunkData = null;
+    private int chunkLength = 0;
+
+    // one cipher per direction, reused for every message
+    private final Cipher encryptCipher = new Cipher(CIPHER_PAD_SIZE);
+    private final Cipher decryptCipher = new Cipher(CIPHER_PAD_SIZE);
+
+    // negotiated during the handshake, replaces the cipher when both sides support it
+    private String sessionNonce = null;
+    private SessionCipher sessionEncrypt = null;
+    private SessionCipher sessionDecrypt = null;
+
+    // one compressor per direction, reused for every message
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private boolean compressorsEnded = false;
 
     private int nextRequestId = 1;
     private final Map<Integer,Result> requests = new HashMap<Integer,Result>();
 
+    {
+        for (Lane lane : LANES)
+            lanes.add(new ArrayDeque<Pending>());
+    }
+
     // For incoming connections
     public Connection(SocketChannel channel) {
         this.channel = channel;
         incoming = true;
     }
 
+    // For incoming local connections
+    Connection() {
+        incoming = true;
+    }
+
     // For outgoing connections
     public Connection(Server server, String address) {
         this.server = server;
         this.connectAddress = address;
+        if (LocalLink.isLocalAddress(address)) {
+            name = address;
+            return;
+        }
         try {
             InetSocketAddress addr = Network.makeInetSocketAddress(address, "localhost", Global.DEFAULT_PLUGIN_PORT, false);
             name = addr.getAddress().getHostAddress() + ":" + addr.getPort();
@@ -83,6 +192,8 @@ public final class Connection {
     }
 
     public String getName() {
+        if ((name == null) && (local != null))
+            name = local.getName();
         if ((name == null) && (channel != null)) {
             Socket socket = channel.socket();
             if ((socket != null) && socket.isConnected())
@@ -93,6 +204,33 @@ public final class Connection {
         return name;
     }
 
+    public boolean isLocal() {
+        return local != null;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    // true if the remote side accepts several API calls in one apiRequest
+    public boolean supportsAPIBatch() {
+        return protocolVersion >= API_BATCH_PROTOCOL_VERSION;
+    }
+
+    // true if the remote side understands refreshData that only carries changes
+    public boolean supportsDeltaRefresh() {
+        return protocolVersion >= DELTA_REFRESH_PROTOCOL_VERSION;
+    }
+
+    // true if the remote side can relay messages to and from other servers
+    public boolean supportsRelay() {
+        return protocolVersion >= RELAY_PROTOCOL_VERSION;
+    }
+
+    public String getSessionCipherName() {
+        return (sessionEncrypt == null) ? SessionCipher.LEGACY : sessionEncrypt.getName();
+    }
+
     public long getLastMessageSentTime() {
         return lastMessageSentTime;
     }
@@ -107,7 +245,7 @@ public final class Connection {
         return getName();
     }
 
-    // Called from Network
+    // Called from Network and Reactor
 
     public SocketChannel getChannel() {
         return channel;
@@ -117,6 +255,22 @@ public final class Connection {
         return connectAddress;
     }
 
+    Reactor getReactor() {
+        return reactor;
+    }
+
+    void setReactor(Reactor reactor) {
+        this.reactor = reactor;
+    }
+
+    LocalLink getLocalLink() {
+        return local;
+    }
+
+    void setLocalLink(LocalLink local) {
+        this.local = local;
+    }
+
     public void onOpening(SocketChannel channel) {
         this.channel = channel;
     }
@@ -135,19 +289,21 @@ public final class Connection {
         state = State.HANDSHAKE;
         // send the handshake message
         TypeMap message = new TypeMap();
-        message.put("protocolVersion", PROTOCOL_VERSION);
+        // advertise the oldest version we speak so older servers accept us,
+        // newer servers will pick the highest version we both support
+        message.put("protocolVersion", MIN_PROTOCOL_VERSION);
+        message.put("maxProtocolVersion", PROTOCOL_VERSION);
         message.put("pluginVersion", Global.pluginVersion);
 
-        try {
-            MessageDigest dig = MessageDigest.getInstance("SHA1");
-            Formatter f = new Formatter();
-            byte[] out = dig.digest((Network.getCachedKey() + ":" + server.getKey()).getBytes("UTF-8"));
-            for (Byte b : out) f.format("%02x", b);
-            message.put("key", f.toString());
-            sendMessage(message, false);
-        } catch (NoSuchAlgorithmException e) {
-            Utils.severe(e, "unable to create handshake message");
-        } catch (UnsupportedEncodingException e) {}
+        message.put("key", createKeyHash(Network.getCachedKey(), server.getKey()));
+        // local links never leave the host, so there's nothing to encrypt
+        List<String> ciphers = (local != null) ? new ArrayList<String>() : getSessionCiphers(server.getEncryption());
+        if (! ciphers.isEmpty()) {
+            sessionNonce = SessionCipher.createNonce();
+            message.put("ciphers", ciphers);
+            message.put("sessionNonce", sessionNonce);
+        }
+        sendMessage(message, false);
     }
 
     // incoming connection, we're the server
@@ -165,103 +321,196 @@ public final class Connection {
         }, HANDSHAKE_TIMEOUT);
     }
 
-    public void onReadData(byte[] data) {
+    // called from the network thread with a buffer that is only valid during the call
+    public void onReadData(ByteBuffer data) {
         if (state == State.CLOSED) return;
 
+        // readBuffer is kept in write mode, with unprocessed data at the front
         if (readBuffer == null)
-            readBuffer = data;
-        else {
-            int oldSize = readBuffer.length;
-            readBuffer = Arrays.copyOf(readBuffer, oldSize + data.length);
-            System.arraycopy(data, 0, readBuffer, oldSize, data.length);
+            readBuffer = ByteBuffer.allocate(Math.max(MIN_READ_BUFFER_SIZE, data.remaining()));
+        else if (readBuffer.remaining() < data.remaining()) {
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(readBuffer.capacity() * 2, readBuffer.position() + data.remaining()));
+            readBuffer.flip();
+            newBuffer.put(readBuffer);
+            readBuffer = newBuffer;
         }
+        readBuffer.put(data);
+        readBuffer.flip();
 
-        // extract and process all records received
-        while (readBuffer.length >= 4) {
-            byte flags = readBuffer[0];
-            int recLenNew =
-                    (0x00ff0000 & (Utils.unsignedByteToInt(readBuffer[1]) << 16)) +
-                    (0x0000ff00 & (Utils.unsignedByteToInt(readBuffer[2]) << 8)) +
-                    (0x000000ff & Utils.unsignedByteToInt(readBuffer[3]));
+        // extract and process all records received, in place
+        byte[] array = readBuffer.array();
+        while (readBuffer.remaining() >= 4) {
+            int pos = readBuffer.position();
+            byte flags = array[pos];
             int recLen =
-                    (0x00ff0000 & ((int)readBuffer[1] << 16)) +
-                    (0x0000ff00 & ((int)readBuffer[2] << 8)) +
-                    (0x000000ff & (int)readBuffer[3]);
-            if (recLen < 0) {
-                Utils.warning("received invalid message length from %s", name);
-                close();
-                return;
-            }
-            if (readBuffer.length >= (recLen + 4)) {
+                    (0x00ff0000 & (array[pos + 1] << 16)) +
+                    (0x0000ff00 & (array[pos + 2] << 8)) +
+                    (0x000000ff & array[pos + 3]);
+            if (readBuffer.remaining() < (recLen + 4)) break;
+            readBuffer.position(pos + recLen + 4);
+            if (! onRecord(flags, array, pos + 4, recLen)) return;
+            if (state == State.CLOSED) return;
+        }
+
+        // only the tail of a partial record is moved
+        readBuffer.compact();
+        if ((readBuffer.position() == 0) && (readBuffer.capacity() > MAX_IDLE_READ_BUFFER_SIZE))
+            readBuffer = null;
+    }
+
+    // decrypts and decompresses the record in place, returns false if the connection was closed
+    private boolean onRecord(byte flags, byte[] data, int offset, int length) {
+        try {
+            if ((flags & SESSION_FLAG) == SESSION_FLAG) {
+                if (sessionDecrypt == null) {
+                    Utils.warning("received session encrypted message from %s without a session", getName());
+                    close();
+                    return false;
+                }
                 try {
-                    byte[] messageData = Arrays.copyOfRange(readBuffer, 4, recLen + 4);
-                    byte[] clearData = messageData;
-                    if ((flags & ENCRYPTED_FLAG) == ENCRYPTED_FLAG) {
-                        Cipher cipher = new Cipher(CIPHER_PAD_SIZE);
-                        cipher.initDecrypt(Network.getCachedKey().getBytes("UTF-8"));
-                        messageData = cipher.doFinal(messageData);
-                    }
-                    String encoded = new String(messageData, "UTF-8");
-                    try {
-                        TypeMap message = TypeMap.decode(encoded);
-                        if (message != null)
-                            onMessage(message);
-                    } catch (StringIndexOutOfBoundsException e) {
-                        Utils.severe("Got a StringIndexOutOfBounds, dumping debug state!!!");
-                        Utils.severe("flags=%s", flags);
-                        Utils.severe("recLen bytes: %s %s %s",
-                            (0x00ff0000 & ((long)readBuffer[1] << 16)),
-                            (0x0000ff00 & ((long)readBuffer[2] << 8)),
-                            (0x000000ff & (long)readBuffer[3])
-                        );
-                        Utils.severe("recLen=%s", recLen);
-                        Utils.severe("recLenNew=%s", recLenNew);
-                        Utils.severe("readBuffer.length=%s", readBuffer.length);
-                        Utils.severe("clearData.length=%s", clearData.length);
-                        Utils.severe("messageData.length=%s", messageData.length);
-                        Utils.severe("encoded.length=%s", encoded.length());
-                        Utils.severe("encoded=%s", encoded);
-                        Utils.severe("first 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, 0, 16));
-                        Utils.severe("last 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, clearData.length - 16, 16));
-                        Utils.severe("first 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, 0, 16));
-                        Utils.severe("last 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, messageData.length - 16, 16));
-                        Utils.severe("first 16 bytes of readBuffer: %s", Utils.byteArrayToString(readBuffer, 0, 16));
-                        Utils.severe("next 16 bytes of readBuffer: %s", Utils.byteArrayToString(readBuffer, recLen + 4, 16));
-                        throw e;
-                    }
-                } catch (Throwable t) {
-                    Utils.severe(t, "exception while processing message from %s: %s", name, t.getMessage());
+                    length = sessionDecrypt.open(data, offset, length, flags);
+                } catch (GeneralSecurityException e) {
+                    Utils.warning("message authentication failed on connection with %s: %s", getName(), e.getMessage());
                     close();
-                    return;
+                    return false;
                 }
-                if ((recLen + 4) == readBuffer.length) {
-                    readBuffer = null;
-                    break;
-                } else
-                    readBuffer = Arrays.copyOfRange(readBuffer, recLen + 4, readBuffer.length);
-            } else
-                break;
+            } else if ((flags & ENCRYPTED_FLAG) == ENCRYPTED_FLAG) {
+                decryptCipher.initDecrypt(Network.getCachedKey().getBytes("UTF-8"));
+                length = decryptCipher.doFinalInPlace(data, offset, length);
+                if (length == -1) {
+                    Utils.warning("unable to decrypt message from %s", getName());
+                    close();
+                    return false;
+                }
+            }
+            if ((flags & COMPRESSED_FLAG) == COMPRESSED_FLAG) {
+                // inflating is only done for a peer that proved it has the key
+                if (state != State.ESTABLISHED) {
+                    Utils.warning("received compressed message from %s before the handshake finished", getName());
+                    close();
+                    return false;
+                }
+                data = decompress(data, offset, length);
+                offset = 0;
+                length = data.length;
+            }
+            if ((flags & CHUNK_FLAG) == CHUNK_FLAG) {
+                // don't let an unauthenticated peer make us hold a big message
+                if (state != State.ESTABLISHED) {
+                    Utils.warning("received chunked message from %s before the handshake finished", getName());
+                    close();
+                    return false;
+                }
+                if (! appendChunk(data, offset, length)) {
+                    Utils.warning("chunked message from %s is too big", getName());
+                    close();
+                    return false;
+                }
+                if ((flags & MORE_FLAG) == MORE_FLAG) return true;
+                data = chunkData;
+                offset = 0;
+                length = chunkLength;
+                chunkData = null;
+                chunkLength = 0;
+            }
+            if ((flags & BATCH_FLAG) == BATCH_FLAG) {
+                Object batch = Binary.decode(ByteBuffer.wrap(data, offset, length));
+                if (! (batch instanceof List))
+                    throw new IllegalArgumentException("batch record does not contain a list");
+                for (Object o : (List)batch) {
+                    if (state == State.CLOSED) return false;
+                    if (o instanceof TypeMap)
+                        onMessage((TypeMap)o);
+                }
+                return true;
+            }
+            TypeMap message;
+            if ((flags & BINARY_FLAG) == BINARY_FLAG)
+                message = TypeMap.decodeBinary(ByteBuffer.wrap(data, offset, length));
+            else {
+                String encoded = new String(data, offset, length, "UTF-8");
+                try {
+                    message = TypeMap.decode(encoded);
+                } catch (StringIndexOutOfBoundsException e) {
+                    Utils.severe("Got a StringIndexOutOfBounds, dumping debug state!!!");
+                    Utils.severe("flags=%s", flags);
+                    Utils.severe("length=%s", length);
+                    Utils.severe("encoded.length=%s", encoded.length());
+                    Utils.severe("encoded=%s", encoded);
+                    Utils.severe("first 16 bytes of data: %s", Utils.byteArrayToString(data, offset, 16));
+                    Utils.severe("last 16 bytes of data: %s", Utils.byteArrayToString(data, Math.max(offset, offset + length - 16), 16));
+                    throw e;
+                }
+            }
+            if (message != null)
+                onMessage(message);
+            return true;
+        } catch (Throwable t) {
+            Utils.severe(t, "exception while processing message from %s: %s", name, t.getMessage());
+            close();
+            return false;
         }
+    }
 
+    // adds a piece of the chunked message being received, returns false if the message would be too big
+    private boolean appendChunk(byte[] data, int offset, int length) {
+        int size = chunkLength + length;
+        if (size > MAX_INFLATED_SIZE) return false;
+        if (chunkData == null)
+            chunkData = new byte[Math.max(size, CHUNK_SIZE)];
+        else if (chunkData.length < size)
+            chunkData = Arrays.copyOf(chunkData, Math.min(MAX_INFLATED_SIZE, Math.max(size, chunkData.length * 2)));
+        System.arraycopy(data, offset, chunkData, chunkLength, length);
+        chunkLength = size;
+        return true;
     }
 
     public boolean onHasWriteData() {
         synchronized (writeBuffers) {
-            return ! writeBuffers.isEmpty();
+            return (! writeBuffers.isEmpty()) || (pendingCount > 0);
+        }
+
+    }
+
+    // fills the array with the buffers at the head of the queue and returns how many were added
+    public int onGetWriteData(ByteBuffer[] buffers) {
+        fillWire();
+        synchronized (writeBuffers) {
+            int count = 0;
+            for (ByteBuffer buffer : writeBuffers) {
+                if (count == buffers.length) break;
+                buffers[count++] = buffer;
+            }
+            return count;
+        }
+    }
+
+    // removes the buffers that have been completely written, partial buffers keep their position
+    public void onWroteData(long numWrote) {
+        synchronized (writeBuffers) {
+            wireBytes = Math.max(0, wireBytes - numWrote);
+            while ((! writeBuffers.isEmpty()) && (! writeBuffers.peekFirst().hasRemaining()))
+                writeBuffers.removeFirst();
         }
+    }
 
+    public long getQueuedBytes() {
+        synchronized (writeBuffers) {
+            long bytes = wireBytes;
+            for (long b : laneBytes) bytes += b;
+            return bytes;
+        }
     }
 
-    public byte[] onGetWriteData() {
+    public long getDroppedMessages() {
         synchronized (writeBuffers) {
-            if (writeBuffers.isEmpty()) return null;
-            return writeBuffers.remove(0);
+            return droppedMessages;
         }
     }
 
-    public void onPutWriteData(byte[] data) {
+    public long getCoalescedMessages() {
         synchronized (writeBuffers) {
-            writeBuffers.add(0, data);
+            return coalescedMessages;
         }
     }
 
@@ -270,6 +519,11 @@ public final class Connection {
 
     public void onKilled() {
         channel = null;
+        synchronized (deflater) {
+            compressorsEnded = true;
+            deflater.end();
+            inflater.end();
+        }
     }
 
     public void onClosed() {
@@ -290,6 +544,8 @@ public final class Connection {
     }
 
     public boolean isOpen() {
+        if (local != null)
+            return (state == State.ESTABLISHED) && local.isOpen();
         return (state == State.ESTABLISHED) &&
                (channel != null) &&
                (channel.socket() != null) &&
@@ -304,56 +560,243 @@ public final class Connection {
     }
 
     public void sendMessage(TypeMap message, boolean encrypt) {
+        sendMessage(new EncodedMessage(message), encrypt);
+    }
+
+    public void sendMessage(EncodedMessage message, boolean encrypt) {
         if (state == State.CLOSED) return;
-        try {
-            String encoded = message.encode();
-            byte[] messageData = encoded.getBytes("UTF-8");
-            byte[] clearData = messageData;
-            if (encrypt) {
-                Cipher cipher = new Cipher(CIPHER_PAD_SIZE);
-                cipher.initEncrypt(server.getKey().getBytes("UTF-8"));
-                messageData = cipher.doFinal(messageData);
+        if (enqueue(message, encrypt))
+            Network.wantWrite(this);
+    }
+
+    // Sends the messages in order, batched into as few records as possible.
+    public void sendMessages(List<EncodedMessage> messages, boolean encrypt) {
+        if (state == State.CLOSED) return;
+        for (EncodedMessage message : messages)
+            if (! enqueue(message, encrypt)) return;
+        Network.wantWrite(this);
+    }
+
+    // Adds the message to its lane, returns false if the connection was closed.
+    // The encoded bytes are shared with other connections sending the same message.
+    private boolean enqueue(EncodedMessage encoded, boolean encrypt) {
+        boolean binary = protocolVersion >= BINARY_PROTOCOL_VERSION;
+        byte[] data = encoded.getData(binary);
+        if (data == null) return true;
+        TypeMap message = encoded.getMessage();
+        String command = message.getString("command");
+        boolean relayed = false;
+        // relayed messages are queued like the message they carry, but never coalesced
+        if ("relay".equals(command)) {
+            TypeMap inner = message.getMap("message");
+            command = (inner == null) ? null : inner.getString("command");
+            relayed = true;
+        }
+        Lane lane = (command == null) ? null : MESSAGE_LANES.get(command);
+        if (lane == null) lane = Lane.CONTROL;
+        String coalesceKey = null;
+        if ((! relayed) && (command != null) && COALESCED_MESSAGES.contains(command))
+            coalesceKey = command + ":" + message.getString("player");
+        Pending pending = new Pending(data, binary, encrypt, lane, coalesceKey, DROPPABLE_MESSAGES.contains(command));
+
+        long queued;
+        synchronized (writeBuffers) {
+            // only the newest message for the same key is sent
+            if (coalesceKey != null) {
+                Pending old = coalescing.put(coalesceKey, pending);
+                if ((old != null) && (old != chunking)) {
+                    discard(old);
+                    coalescedMessages++;
+                }
             }
-            byte[] data = new byte[messageData.length + 4];
-            System.arraycopy(messageData, 0, data, 4, messageData.length);
-            data[0] = encrypt ? ENCRYPTED_FLAG : 0;
-            data[1] = (byte)(0x00ff & (messageData.length >> 16));
-            data[2] = (byte)(0x00ff & (messageData.length >> 8));
-            data[3] = (byte)(0x00ff & messageData.length);
+            lanes.get(lane.ordinal()).addLast(pending);
+            laneBytes[lane.ordinal()] += data.length;
+            pendingCount++;
 
-            int recLen =
-                    (0x00ff0000 & ((int)data[1] << 16)) +
-                    (0x0000ff00 & ((int)data[2] << 8)) +
-                    (0x000000ff & (int)data[3]);
-            if (recLen != messageData.length) {
-                Utils.severe("Encoded message link mismatched, dumping debug state!!!");
-                Utils.severe("encoded=%s", encoded);
-                Utils.severe("encoded.length=%s", encoded.length());
-                Utils.severe("encrypt=%s", encrypt);
-                Utils.severe("clearData.length=%s", clearData.length);
-                Utils.severe("messageData.length=%s", messageData.length);
-                Utils.severe("data.length=%s", data.length);
-                Utils.severe("recLen=%s", recLen);
-                Utils.severe("recLen bytes: %s %s %s",
-                    (0x00ff0000 & ((int)data[1] << 16)),
-                    (0x0000ff00 & ((int)data[2] << 8)),
-                    (0x000000ff & (int)data[3])
-                );
-                Utils.severe("first 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, 0, 16));
-                Utils.severe("last 16 bytes of clearData: %s", Utils.byteArrayToString(clearData, clearData.length - 16, 16));
-                Utils.severe("first 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, 0, 16));
-                Utils.severe("last 16 bytes of messageData: %s", Utils.byteArrayToString(messageData, messageData.length - 16, 16));
-                Utils.severe("first 16 bytes of data: %s", Utils.byteArrayToString(data, 0, 16));
-                Utils.severe("last 16 bytes of data: %s", Utils.byteArrayToString(data, data.length - 16, 16));
-                (new Exception("Invalid message encoding!!!")).printStackTrace();
+            // trim the oldest droppable messages from a lane that's over its limit
+            int limit = Network.getCachedLaneLimit(lane);
+            if ((limit > 0) && (laneBytes[lane.ordinal()] > limit)) {
+                for (Pending p : lanes.get(lane.ordinal())) {
+                    if (laneBytes[lane.ordinal()] <= limit) break;
+                    if (p.discarded || (! p.droppable) || (p == chunking)) continue;
+                    discard(p);
+                    droppedMessages++;
+                }
             }
+
+            queued = wireBytes;
+            for (long b : laneBytes) queued += b;
+        }
+
+        int queueLimit = Network.getCachedQueueLimit();
+        if ((queueLimit > 0) && (queued > queueLimit)) {
+            Utils.warning("closing connection with %s because %d bytes are waiting to be sent", getName(), queued);
+            abort();
+            return false;
+        }
+        return true;
+    }
+
+    // called with writeBuffers locked
+    private void discard(Pending pending) {
+        if (pending.discarded) return;
+        pending.discarded = true;
+        laneBytes[pending.lane.ordinal()] -= pending.data.length - pending.sent;
+        pendingCount--;
+        if ((pending.coalesceKey != null) && (coalescing.get(pending.coalesceKey) == pending))
+            coalescing.remove(pending.coalesceKey);
+    }
+
+    // closes the connection without waiting for queued data to be written
+    private void abort() {
+        synchronized (writeBuffers) {
+            writeBuffers.clear();
+            wireBytes = 0;
+            for (Deque<Pending> l : lanes)
+                l.clear();
+            Arrays.fill(laneBytes, 0);
+            pendingCount = 0;
+            coalescing.clear();
+            chunking = null;
+        }
+        close();
+    }
+
+    // Moves messages from the lanes to the wire, highest priority lane first,
+    // until enough data is queued to keep the socket busy.
+    // Only called from the network thread, so records are sealed in order.
+    private void fillWire() {
+        while (true) {
+            List<Pending> batch = new ArrayList<Pending>();
+            Pending chunk = null;
+            int chunkOffset = 0;
+            int chunkSize = 0;
+            boolean more = false;
             synchronized (writeBuffers) {
-                writeBuffers.add(data);
+                if (wireBytes >= WIRE_BUFFER_SIZE) return;
+                for (Deque<Pending> lane : lanes) {
+                    Pending first = null;
+                    int batchSize = 0;
+                    while (! lane.isEmpty()) {
+                        Pending p = lane.peekFirst();
+                        if (p.discarded) {
+                            lane.removeFirst();
+                            continue;
+                        }
+                        if ((protocolVersion >= CHUNK_PROTOCOL_VERSION) && (p.data.length > CHUNK_SIZE)) {
+                            // one piece at a time, and only of one message at a time
+                            if ((first != null) || ((chunking != null) && (chunking != p))) break;
+                            chunk = p;
+                            chunkOffset = p.sent;
+                            chunkSize = Math.min(CHUNK_SIZE, p.data.length - p.sent);
+                            p.sent += chunkSize;
+                            laneBytes[p.lane.ordinal()] -= chunkSize;
+                            more = p.sent < p.data.length;
+                            if (more)
+                                chunking = p;
+                            else {
+                                chunking = null;
+                                lane.removeFirst();
+                                discard(p);
+                            }
+                            break;
+                        }
+                        if (first == null)
+                            first = p;
+                        else if ((! first.binary) || (! p.binary) ||
+                                 (first.encrypt != p.encrypt) ||
+                                 (protocolVersion < BATCH_PROTOCOL_VERSION) ||
+                                 (batch.size() == MAX_BATCH_SIZE) ||
+                                 ((batchSize + p.data.length) > CHUNK_SIZE))
+                            break;
+                        lane.removeFirst();
+                        discard(p);
+                        batch.add(p);
+                        batchSize += p.data.length;
+                    }
+                    if ((! batch.isEmpty()) || (chunk != null)) break;
+                }
+            }
+            if (chunk != null) {
+                byte flags = (byte)(CHUNK_FLAG | (chunk.binary ? BINARY_FLAG : 0) | (more ? MORE_FLAG : 0));
+                sendRecord(Arrays.copyOfRange(chunk.data, chunkOffset, chunkOffset + chunkSize), flags, chunk.encrypt);
+                continue;
+            }
+            if (batch.isEmpty()) return;
+            Pending first = batch.get(0);
+            if (batch.size() == 1)
+                sendRecord(first.data, (byte)(first.binary ? BINARY_FLAG : 0), first.encrypt);
+            else {
+                List<byte[]> values = new ArrayList<byte[]>(batch.size());
+                for (Pending p : batch)
+                    values.add(p.data);
+                ByteBuffer buffer = Binary.encodeList(values);
+                sendRecord(Arrays.copyOf(buffer.array(), buffer.limit()), (byte)(BINARY_FLAG | BATCH_FLAG), first.encrypt);
+            }
+        }
+    }
+
+    private void sendRecord(byte[] messageData, byte flags, boolean encrypt) {
+        // handshake messages are the only ones sent in the clear, the other side won't inflate them
+        boolean compress = encrypt;
+        if (local != null) encrypt = false;
+        try {
+            int threshold = Network.getCachedCompressionThreshold();
+            if (compress &&
+                (protocolVersion >= COMPRESSION_PROTOCOL_VERSION) &&
+                (threshold > 0) &&
+                (messageData.length >= threshold)) {
+                byte[] compressed = compress(messageData);
+                if (compressed != null) {
+                    messageData = compressed;
+                    flags |= COMPRESSED_FLAG;
+                }
+            }
+            SessionCipher session = encrypt ? sessionEncrypt : null;
+            // only older servers can get here, they can't take the message in chunks
+            int maxLen = (session != null) ? (messageData.length + SessionCipher.OVERHEAD) :
+                         (encrypt ? encryptCipher.getEncryptedLength(messageData.length) : messageData.length);
+            if (maxLen > MAX_RECORD_SIZE) {
+                Utils.warning("unable to send %d byte message to %s, it is too big", maxLen, getName());
+                return;
+            }
+            int recordLen;
+            byte[] data;
+            if (session != null) {
+                flags |= SESSION_FLAG;
+                data = new byte[messageData.length + SessionCipher.OVERHEAD + 4];
+                // messages can be sent from any thread
+                synchronized (session) {
+                    recordLen = session.seal(messageData, 0, messageData.length, flags, data, 4);
+                }
+            } else {
+                recordLen = encrypt ? encryptCipher.getEncryptedLength(messageData.length) : messageData.length;
+                data = new byte[recordLen + 4];
+                System.arraycopy(messageData, 0, data, 4, messageData.length);
+                if (encrypt) {
+                    flags |= ENCRYPTED_FLAG;
+                    // messages can be sent from any thread
+                    synchronized (encryptCipher) {
+                        encryptCipher.initEncrypt(server.getKey().getBytes("UTF-8"));
+                        encryptCipher.doFinalInPlace(data, 4, messageData.length);
+                    }
+                }
+            }
+            data[0] = flags;
+            data[1] = (byte)(0x00ff & (recordLen >> 16));
+            data[2] = (byte)(0x00ff & (recordLen >> 8));
+            data[3] = (byte)(0x00ff & recordLen);
+
+            synchronized (writeBuffers) {
+                writeBuffers.addLast(ByteBuffer.wrap(data));
+                wireBytes += data.length;
             }
             lastMessageSentTime = System.currentTimeMillis();
         } catch (UnsupportedEncodingException e) {
+        } catch (GeneralSecurityException e) {
+            Utils.severe(e, "unable to encrypt message for %s: %s", getName(), e.getMessage());
+            close();
         }
-        Network.wantWrite(this);
     }
 
     public Result sendRequest(TypeMap message, boolean encrypt) {
@@ -388,13 +831,16 @@ public final class Connection {
                 close();
                 return;
             }
+            // older peers only send protocolVersion, newer ones send the range they support
             int protocol = message.getInt("protocolVersion", 0);
-            if (protocol != PROTOCOL_VERSION) {
+            int maxProtocol = message.getInt("maxProtocolVersion", protocol);
+            if ((protocol > PROTOCOL_VERSION) || (maxProtocol < MIN_PROTOCOL_VERSION)) {
                 if ((server == null) || (! server.connectionMessagesSuppressed()))
-                    Utils.warning("protocol version mismatch on connection with '%s', wanted '%d', got '%d'", getName(), PROTOCOL_VERSION, protocol);
+                    Utils.warning("protocol version mismatch on connection with '%s', wanted '%d' to '%d', got '%d' to '%d'", getName(), MIN_PROTOCOL_VERSION, PROTOCOL_VERSION, protocol, maxProtocol);
                 close();
                 return;
             }
+            protocolVersion = Math.min(maxProtocol, PROTOCOL_VERSION);
             String version = message.getString("pluginVersion");
             if (version == null) {
                 if ((server == null) || (! server.connectionMessagesSuppressed()))
@@ -412,44 +858,53 @@ public final class Connection {
                     close();
                     return;
                 }
-                for (Server serv : Servers.getAll()) {
-                    try {
-                        MessageDigest dig = MessageDigest.getInstance("SHA1");
-                        Formatter f = new Formatter();
-                        byte[] out = dig.digest((serv.getKey() + ":" + Network.getCachedKey()).getBytes("UTF-8"));
-                        for (Byte b : out) f.format("%02x", b);
-                        if (f.toString().equals(key)) {
-                            Utils.info("server key match detected for '%s' on connection with %s", serv.getName(), getName());
-                            if (serv.isEnabled()) {
-                                if (serv.isConnectionConnected()) {
-                                    Utils.warning("server '%s' is already connected", serv.getName());
-                                    close();
-                                    return;
-                                } else if (serv.isConnecting())
-                                    serv.disconnect(false);
-                                server = serv;
-                                server.setConnection(this);
-                                state = State.ESTABLISHED;
-
-                                // send handshake
-                                message = new TypeMap();
-                                message.put("protocolVersion", PROTOCOL_VERSION);
-                                message.put("pluginVersion", Global.pluginVersion);
-                                sendMessage(message, false);
-
-                                server.onConnected(version);
-                                return;
-                            } else {
-                                Utils.info("server '%s' is disabled", serv.getName());
-                                TypeMap errMsg = new TypeMap();
-                                errMsg.put("error", "server is disabled");
-                                sendMessage(errMsg, false);
+                // find the server whose key the other side used
+                Server serv = Servers.findByKeyHash(key);
+                if (serv != null) {
+                    Utils.info("server key match detected for '%s' on connection with %s", serv.getName(), getName());
+                    if (serv.isEnabled()) {
+                        // connections for the same server can arrive on different reactors
+                        synchronized (serv) {
+                            if (serv.isConnectionConnected()) {
+                                Utils.warning("server '%s' is already connected", serv.getName());
                                 close();
                                 return;
+                            } else if (serv.isConnecting())
+                                serv.disconnect(false);
+                            server = serv;
+                            server.setConnection(this);
+                        }
+                        String cipherName = selectSessionCipher(message);
+                        String clientNonce = message.getString("sessionNonce");
+                        state = State.ESTABLISHED;
+
+                        // send handshake
+                        message = new TypeMap();
+                        message.put("protocolVersion", protocolVersion);
+                        message.put("pluginVersion", Global.pluginVersion);
+                        if (cipherName != null) {
+                            sessionNonce = SessionCipher.createNonce();
+                            try {
+                                startSession(cipherName, clientNonce, sessionNonce);
+                                message.put("cipher", cipherName);
+                                message.put("sessionNonce", sessionNonce);
+                            } catch (GeneralSecurityException e) {
+                                Utils.warning("unable to start '%s' session with %s, using legacy encryption: %s", cipherName, getName(), e.getMessage());
+                                sessionEncrypt = sessionDecrypt = null;
                             }
                         }
-                    } catch (NoSuchAlgorithmException e) {
-                    } catch (UnsupportedEncodingException e) {}
+                        sendMessage(message, false);
+
+                        server.onConnected(version);
+                        return;
+                    } else {
+                        Utils.info("server '%s' is disabled", serv.getName());
+                        TypeMap errMsg = new TypeMap();
+                        errMsg.put("error", "server is disabled");
+                        sendMessage(errMsg, false);
+                        close();
+                        return;
+                    }
                 }
                 if ((server == null) || (! server.connectionMessagesSuppressed()))
                     Utils.warning("unknown key detected on connection with %s", this);
@@ -458,7 +913,24 @@ public final class Connection {
                 sendMessage(errMsg, false);
                 close();
             } else {
+                String cipherName = message.getString("cipher");
+                if (cipherName != null) {
+                    if ((sessionNonce == null) || (! getSessionCiphers(server.getEncryption()).contains(cipherName))) {
+                        Utils.warning("unexpected session cipher '%s' on connection with %s", cipherName, getName());
+                        close();
+                        return;
+                    }
+                    try {
+                        startSession(cipherName, sessionNonce, message.getString("sessionNonce"));
+                    } catch (GeneralSecurityException e) {
+                        Utils.warning("unable to start '%s' session with %s: %s", cipherName, getName(), e.getMessage());
+                        close();
+                        return;
+                    }
+                }
                 state = State.ESTABLISHED;
+                Utils.debug("using protocol version %d with %s", protocolVersion, getName());
+                Utils.debug("using %s encryption with %s", getSessionCipherName(), getName());
                 server.onConnected(version);
             }
 
@@ -485,6 +957,113 @@ public final class Connection {
         }
     }
 
+    // Returns the compressed data prefixed with the original length,
+    // or null if compression wouldn't make the message smaller.
+    private byte[] compress(byte[] data) {
+        synchronized (deflater) {
+            if (compressorsEnded) return null;
+            byte[] out = new byte[data.length];
+            out[0] = (byte)(0x00ff & (data.length >> 24));
+            out[1] = (byte)(0x00ff & (data.length >> 16));
+            out[2] = (byte)(0x00ff & (data.length >> 8));
+            out[3] = (byte)(0x00ff & data.length);
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            int len = 4;
+            while ((! deflater.finished()) && (len < out.length))
+                len += deflater.deflate(out, len, out.length - len);
+            if (! deflater.finished()) return null;
+            return Arrays.copyOf(out, len);
+        }
+    }
+
+    // called from the network thread
+    private byte[] decompress(byte[] data, int offset, int length) throws DataFormatException {
+        if (length < 4)
+            throw new DataFormatException("compressed message is too short");
+        int size =
+                (0xff000000 & (data[offset] << 24)) +
+                (0x00ff0000 & (data[offset + 1] << 16)) +
+                (0x0000ff00 & (data[offset + 2] << 8)) +
+                (0x000000ff & data[offset + 3]);
+        if ((size < 0) || (size > MAX_INFLATED_SIZE))
+            throw new DataFormatException("invalid inflated message size " + size);
+        byte[] out = new byte[size];
+        synchronized (deflater) {
+            if (compressorsEnded)
+                throw new DataFormatException("connection is closed");
+            inflater.reset();
+            inflater.setInput(data, offset + 4, length - 4);
+            int len = 0;
+            while (len < size) {
+                int num = inflater.inflate(out, len, size - len);
+                if ((num == 0) && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                len += num;
+            }
+            if (len != size)
+                throw new DataFormatException("inflated message size mismatch");
+        }
+        return out;
+    }
+
+    // The key sent in the handshake, a hash of the sender's and receiver's network keys.
+    public static String createKeyHash(String clientKey, String serverKey) {
+        return digest("SHA1", clientKey + ":" + serverKey);
+    }
+
+    // Used to index servers by the key hash they're expected to send.
+    public static String createIndexHash(String keyHash) {
+        return digest("SHA-256", keyHash);
+    }
+
+    private static String digest(String algorithm, String data) {
+        try {
+            MessageDigest dig = MessageDigest.getInstance(algorithm);
+            Formatter f = new Formatter();
+            byte[] out = dig.digest(data.getBytes("UTF-8"));
+            for (byte b : out) f.format("%02x", b);
+            return f.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " is not available");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported");
+        }
+    }
+
+    // returns the session ciphers we'll offer or accept, in order of preference
+    private static List<String> getSessionCiphers(String preferred) {
+        List<String> ciphers = new ArrayList<String>();
+        if ((preferred == null) || SessionCipher.LEGACY.equals(preferred)) return ciphers;
+        List<String> available = SessionCipher.getAvailable();
+        if (available.contains(preferred))
+            ciphers.add(preferred);
+        for (String name : available)
+            if (! ciphers.contains(name)) ciphers.add(name);
+        return ciphers;
+    }
+
+    // incoming connection, picks our most preferred cipher offered by the client
+    private String selectSessionCipher(TypeMap message) {
+        if (local != null) return null;
+        List<String> offered = message.getStringList("ciphers");
+        if ((offered == null) || (message.getString("sessionNonce") == null)) return null;
+        for (String name : getSessionCiphers(server.getEncryption()))
+            if (offered.contains(name)) return name;
+        return null;
+    }
+
+    private void startSession(String cipherName, String clientNonce, String serverNonce) throws GeneralSecurityException {
+        if ((clientNonce == null) || (serverNonce == null))
+            throw new GeneralSecurityException("missing session nonce");
+        String clientKey = incoming ? server.getKey() : Network.getCachedKey();
+        String serverKey = incoming ? Network.getCachedKey() : server.getKey();
+        SessionCipher enc = SessionCipher.create(cipherName, true, clientKey, serverKey, clientNonce, serverNonce, incoming ? "server" : "client");
+        SessionCipher dec = SessionCipher.create(cipherName, false, clientKey, serverKey, clientNonce, serverNonce, incoming ? "client" : "server");
+        sessionEncrypt = enc;
+        sessionDecrypt = dec;
+    }
+
     private enum State {
         NONE,
         HANDSHAKE,
@@ -493,4 +1072,27 @@ public final class Connection {
         CLOSED;
     }
 
+    private static final class Pending {
+
+        final byte[] data;
+        final boolean binary;
+        final boolean encrypt;
+        final Lane lane;
+        final String coalesceKey;
+        final boolean droppable;
+        boolean discarded = false;
+        // bytes already sent when the message is sent in chunks
+        int sent = 0;
+
+        Pending(byte[] data, boolean binary, boolean encrypt, Lane lane, String coalesceKey, boolean droppable) {
+            this.data = data;
+            this.binary = binary;
+            this.encrypt = encrypt;
+            this.lane = lane;
+            this.coalesceKey = coalesceKey;
+            this.droppable = droppable;
+        }
+
+    }
+
 }
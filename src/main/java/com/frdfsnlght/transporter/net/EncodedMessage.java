@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import com.frdfsnlght.transporter.TypeMap;
+
+/**
+ * A message and its encoded bytes.
+ * <p>
+ * The message is encoded the first time a connection asks for it in a
+ * given format and the bytes are reused by every other connection, so a
+ * message broadcast to many servers is only encoded once. The message
+ * must not be changed once it has been wrapped.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class EncodedMessage {
+
+    private final TypeMap message;
+    private byte[] binaryData = null;
+    private byte[] textData = null;
+
+    public EncodedMessage(TypeMap message) {
+        this.message = message;
+    }
+
+    public TypeMap getMessage() {
+        return message;
+    }
+
+    // can be called from any thread, the returned array must not be modified
+    public synchronized byte[] getData(boolean binary) {
+        if (binary) {
+            if (binaryData == null) {
+                ByteBuffer buffer = message.encodeBinary();
+                binaryData = Arrays.copyOf(buffer.array(), buffer.limit());
+            }
+            return binaryData;
+        }
+        if (textData == null) {
+            try {
+                textData = message.encode().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+        return textData;
+    }
+
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import com.frdfsnlght.transporter.Server;
+import com.frdfsnlght.transporter.ThreadState;
+import com.frdfsnlght.transporter.Utils;
+
+/**
+ * A connection to a server on the same host through a pair of shared
+ * memory rings.
+ * <p>
+ * A server that accepts local connections owns a directory named after
+ * it under the shared local directory. To connect, the other side creates
+ * a subdirectory holding one ring for each direction and then a "ready"
+ * marker. The accepting side claims the link by renaming the marker. The
+ * normal handshake runs over the rings, so keys are still checked, but
+ * records are never encrypted.
+ * </p>
+ * <p>
+ * The shared local directory and its parent must be owned by the user
+ * running the server and must not be writable by anyone else, and none
+ * of them may be a symbolic link, otherwise local connections are
+ * refused. Ownership and permissions can only be checked on Java 7 and
+ * later.
+ * </p>
+ * <p>
+ * Each link has its own thread that does what a reactor does for a
+ * socket. It spins briefly when the link goes idle and then backs off
+ * to sleeping, and is woken up as soon as there is something to send.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class LocalLink implements Runnable {
+
+    public static final String SCHEME = "local:";
+
+    private static final int RING_SIZE = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int MAX_GATHER_BUFFERS = 64;
+    private static final int SPIN_LIMIT = 1000;
+    private static final long MAX_IDLE_NANOS = 1000000L;
+    private static final long ACCEPT_INTERVAL = 100;
+
+    private static final String LISTENING_FILE = "listening";
+    private static final String READY_FILE = "ready";
+    private static final String ACCEPTED_FILE = "accepted";
+    private static final String CLIENT_RING_FILE = "client";
+    private static final String SERVER_RING_FILE = "server";
+
+    private static final Random random = new Random();
+    private static final Set<LocalLink> links = new HashSet<LocalLink>();
+
+    private static volatile File listenDirectory = null;
+    private static Thread acceptThread = null;
+    private static volatile ThreadState acceptState = ThreadState.STOPPED;
+
+    // java.nio.file is looked up by name so Java 6 still works, without the ownership checks
+    private static Method toPath = null;
+    private static Method isSymbolicLink = null;
+    private static Method getOwner = null;
+    private static Method getPosixFilePermissions = null;
+    private static Object noFollowLinks = null;
+
+    static {
+        try {
+            Class<?> files = Class.forName("java.nio.file.Files");
+            Class<?> path = Class.forName("java.nio.file.Path");
+            Class<?> linkOption = Class.forName("java.nio.file.LinkOption");
+            Object options = Array.newInstance(linkOption, 1);
+            Array.set(options, 0, linkOption.getField("NOFOLLOW_LINKS").get(null));
+            toPath = File.class.getMethod("toPath");
+            isSymbolicLink = files.getMethod("isSymbolicLink", path);
+            getOwner = files.getMethod("getOwner", path, options.getClass());
+            getPosixFilePermissions = files.getMethod("getPosixFilePermissions", path, options.getClass());
+            noFollowLinks = options;
+        } catch (Exception e) {
+            toPath = null;
+        }
+    }
+
+    public static boolean isLocalAddress(String address) {
+        return (address != null) && address.startsWith(SCHEME);
+    }
+
+    // the name of the local server in a local address
+    public static String getLocalName(String address) {
+        String name = address.substring(SCHEME.length());
+        if ((name.length() == 0) || (! name.matches("^[\\w\\-]+$")))
+            throw new IllegalArgumentException("invalid local server name '" + name + "'");
+        return name;
+    }
+
+    // starts accepting local connections under dir/name
+    static synchronized void listen(File dir, String name) throws IOException {
+        if (acceptThread != null) return;
+        if (! LocalRing.isSupported())
+            throw new IOException("local connections aren't supported on this JVM");
+        checkDirectory(dir, true);
+        File listenDir = new File(dir, name);
+        if (isSymlink(listenDir))
+            throw new IOException("local directory '" + listenDir + "' is a symbolic link");
+        // anything left behind is from a previous run
+        if (listenDir.isDirectory())
+            delete(listenDir);
+        if (! listenDir.mkdir())
+            throw new IOException("unable to create local directory '" + listenDir + "'");
+        restrict(listenDir);
+        if (! new File(listenDir, LISTENING_FILE).createNewFile())
+            throw new IOException("unable to create local listening marker in '" + listenDir + "'");
+        listenDirectory = listenDir;
+        acceptState = ThreadState.RUNNING;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "Transporter local acceptor");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Utils.info("network manager accepting local connections as '%s'", name);
+    }
+
+    // stops accepting and closes every local link, waits for their threads to finish
+    static void stop() {
+        Thread t;
+        File listenDir;
+        synchronized (LocalLink.class) {
+            t = acceptThread;
+            listenDir = listenDirectory;
+            acceptThread = null;
+            listenDirectory = null;
+            acceptState = ThreadState.STOP;
+        }
+        if (t != null) {
+            t.interrupt();
+            join(t);
+        }
+        if (listenDir != null)
+            delete(listenDir);
+        List<LocalLink> all;
+        synchronized (links) {
+            all = new ArrayList<LocalLink>(links);
+        }
+        for (LocalLink link : all) {
+            link.close();
+            join(link.thread);
+        }
+    }
+
+    // outgoing connection through dir/name
+    static void connect(Connection conn, File dir, String name) {
+        File peerDir = new File(dir, name);
+        try {
+            if (! LocalRing.isSupported())
+                throw new IOException("local connections aren't supported on this JVM");
+            checkDirectory(dir, false);
+            if (isSymlink(peerDir))
+                throw new IOException("local directory '" + peerDir + "' is a symbolic link");
+        } catch (IOException e) {
+            fail(conn, e);
+            return;
+        }
+        if (! new File(peerDir, LISTENING_FILE).isFile()) {
+            fail(conn, new ConnectException("no local server named '" + name + "' is accepting connections"));
+            return;
+        }
+        File linkDir = new File(peerDir, Long.toHexString(random.nextLong() & Long.MAX_VALUE));
+        LocalRing out = null;
+        LocalRing in = null;
+        try {
+            if (! linkDir.mkdir())
+                throw new IOException("unable to create local link directory '" + linkDir + "'");
+            restrict(linkDir);
+            out = LocalRing.create(new File(linkDir, CLIENT_RING_FILE), RING_SIZE);
+            in = LocalRing.create(new File(linkDir, SERVER_RING_FILE), RING_SIZE);
+            if (! new File(linkDir, READY_FILE).createNewFile())
+                throw new IOException("unable to create local ready marker in '" + linkDir + "'");
+        } catch (IOException e) {
+            delete(linkDir);
+            fail(conn, e);
+            return;
+        }
+        final LocalLink link = new LocalLink(conn, linkDir, in, out);
+        conn.setLocalLink(link);
+        link.start();
+        conn.onOpened();
+        // give up if nobody claims the link
+        Network.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if ((! link.closing) && (! new File(link.dir, ACCEPTED_FILE).exists())) {
+                    Utils.warning("local connection %s was not accepted", link.getName());
+                    link.conn.close();
+                }
+            }
+        }, Connection.PROTOCOL_TIMEOUT);
+    }
+
+    // there's no link to close yet, so the connection is finished off here
+    private static void fail(Connection conn, IOException e) {
+        conn.onException(e);
+        conn.onKilled();
+        conn.onClosed();
+    }
+
+    private static void acceptLoop() {
+        while (acceptState == ThreadState.RUNNING) {
+            File listenDir = listenDirectory;
+            File[] dirs = (listenDir == null) ? null : listenDir.listFiles();
+            if (dirs != null)
+                for (File linkDir : dirs) {
+                    if (! linkDir.isDirectory()) continue;
+                    File ready = new File(linkDir, READY_FILE);
+                    if (! ready.isFile()) continue;
+                    // only one acceptor ever wins the rename
+                    if (! ready.renameTo(new File(linkDir, ACCEPTED_FILE))) continue;
+                    accept(linkDir);
+                }
+            try {
+                Thread.sleep(ACCEPT_INTERVAL);
+            } catch (InterruptedException ie) {}
+        }
+        acceptState = ThreadState.STOPPED;
+    }
+
+    private static void accept(File linkDir) {
+        LocalRing in;
+        LocalRing out;
+        try {
+            in = LocalRing.open(new File(linkDir, CLIENT_RING_FILE));
+            out = LocalRing.open(new File(linkDir, SERVER_RING_FILE));
+        } catch (IOException e) {
+            Utils.warning("unable to accept local connection '%s': %s", linkDir.getName(), e.getMessage());
+            delete(linkDir);
+            return;
+        }
+        Connection conn = new Connection();
+        LocalLink link = new LocalLink(conn, linkDir, in, out);
+        conn.setLocalLink(link);
+        link.start();
+        conn.onAccepted();
+    }
+
+    private static void restrict(File file) {
+        file.setReadable(false, false);
+        file.setWritable(false, false);
+        file.setExecutable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(true, true);
+        file.setExecutable(true, true);
+    }
+
+    // the link itself is removed, never what it points to
+    private static void delete(File file) {
+        if (! isSymlink(file)) {
+            File[] files = file.listFiles();
+            if (files != null)
+                for (File f : files)
+                    delete(f);
+        }
+        file.delete();
+    }
+
+    // makes sure nobody else can put things in the local directory, creating it if needed
+    private static void checkDirectory(File dir, boolean create) throws IOException {
+        dir = dir.getAbsoluteFile();
+        File parent = dir.getParentFile();
+        if (parent != null)
+            checkOwnership(parent);
+        if (create && (! dir.exists())) {
+            if (! dir.mkdirs())
+                throw new IOException("unable to create local directory '" + dir + "'");
+            restrict(dir);
+        }
+        checkOwnership(dir);
+        if (! dir.isDirectory())
+            throw new IOException("local directory '" + dir + "' is not a directory");
+    }
+
+    private static void checkOwnership(File file) throws IOException {
+        if (isSymlink(file))
+            throw new IOException("local directory '" + file + "' is a symbolic link");
+        if ((toPath == null) || (! file.exists())) return;
+        try {
+            Object path = toPath.invoke(file);
+            String owner = getOwner.invoke(null, path, noFollowLinks).toString();
+            String user = System.getProperty("user.name");
+            // Windows owners carry the domain
+            if ((! owner.equals(user)) && (! owner.endsWith("\\" + user)))
+                throw new IOException("local directory '" + file + "' is owned by " + owner);
+            Set<?> perms;
+            try {
+                perms = (Set<?>)getPosixFilePermissions.invoke(null, path, noFollowLinks);
+            } catch (InvocationTargetException e) {
+                // not a POSIX file system
+                if (e.getCause() instanceof UnsupportedOperationException) return;
+                throw e;
+            }
+            for (Object perm : perms)
+                if (perm.toString().equals("GROUP_WRITE") || perm.toString().equals("OTHERS_WRITE"))
+                    throw new IOException("local directory '" + file + "' can be written by other users");
+        } catch (IllegalAccessException e) {
+            throw new IOException("unable to check local directory '" + file + "': " + e.getMessage());
+        } catch (InvocationTargetException e) {
+            throw new IOException("unable to check local directory '" + file + "': " + e.getCause().getMessage());
+        }
+    }
+
+    private static boolean isSymlink(File file) {
+        try {
+            if (toPath != null)
+                return (Boolean)isSymbolicLink.invoke(null, toPath.invoke(file));
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent == null) return false;
+            File f = new File(parent.getCanonicalFile(), file.getName());
+            return ! f.getCanonicalFile().equals(f.getAbsoluteFile());
+        } catch (Exception e) {
+            // assume the worst
+            return true;
+        }
+    }
+
+    private static void join(Thread t) {
+        if (t == null) return;
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException ie) {}
+        }
+    }
+
+    private final Connection conn;
+    private final File dir;
+    private final LocalRing in;
+    private final LocalRing out;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+    // servers with messages to send, only flushed on the link's thread so they stay in order
+    private final Queue<Server> flushing = new ConcurrentLinkedQueue<Server>();
+    private volatile Thread thread = null;
+    private volatile boolean closing = false;
+    private volatile boolean finished = false;
+
+    private LocalLink(Connection conn, File dir, LocalRing in, LocalRing out) {
+        this.conn = conn;
+        this.dir = dir;
+        this.in = in;
+        this.out = out;
+    }
+
+    String getName() {
+        return SCHEME + dir.getParentFile().getName() + "/" + dir.getName();
+    }
+
+    boolean isOpen() {
+        return (! closing) && (! in.isClosed()) && (! out.isClosed());
+    }
+
+    private void start() {
+        synchronized (links) {
+            links.add(this);
+        }
+        thread = new Thread(this, "Transporter local link " + dir.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // can be called from any thread
+    void wakeup() {
+        Thread t = thread;
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    // can be called from any thread
+    void flush(Server server) {
+        flushing.offer(server);
+        if (finished)
+            drainFlushing();
+        else
+            wakeup();
+    }
+
+    // once the link is finished nothing is sent, but the servers still have to know their queue was drained
+    private void drainFlushing() {
+        Server server;
+        while ((server = flushing.poll()) != null)
+            server.flushOutbound();
+    }
+
+    // can be called from any thread, queued data is still sent
+    void close() {
+        closing = true;
+        wakeup();
+    }
+
+    @Override
+    public void run() {
+        int idle = 0;
+        long closeDeadline = 0;
+        try {
+            while (true) {
+                boolean busy = false;
+
+                // the other side closes its ring after its last write, so
+                // everything it sent is read before we stop
+                boolean peerClosed = in.isClosed() || out.isClosed();
+                do {
+                    readBuffer.clear();
+                    if (in.read(readBuffer) == 0) break;
+                    readBuffer.flip();
+                    conn.onReadData(readBuffer);
+                    busy = true;
+                } while (peerClosed);
+
+                // Send everything queued by servers since we were woken up
+                drainFlushing();
+
+                boolean more = false;
+                while (true) {
+                    int count = conn.onGetWriteData(writeBuffers);
+                    if (count == 0) break;
+                    long wrote = 0;
+                    for (int i = 0; i < count; i++) {
+                        wrote += out.write(writeBuffers[i]);
+                        if (writeBuffers[i].hasRemaining()) {
+                            more = true;
+                            break;
+                        }
+                    }
+                    Arrays.fill(writeBuffers, 0, count, null);
+                    conn.onWroteData(wrote);
+                    if (wrote > 0) busy = true;
+                    // the ring is full, wait for the other side to catch up
+                    if (more) break;
+                }
+
+                if (peerClosed) break;
+                if (closing) {
+                    if ((! more) && (! conn.onHasWriteData())) break;
+                    // don't wait forever for a peer that stopped reading
+                    if (closeDeadline == 0)
+                        closeDeadline = System.currentTimeMillis() + Connection.PROTOCOL_TIMEOUT;
+                    else if (System.currentTimeMillis() > closeDeadline) break;
+                }
+
+                if (busy)
+                    idle = 0;
+                else if (++idle < SPIN_LIMIT)
+                    Thread.yield();
+                else
+                    LockSupport.parkNanos(Math.min(MAX_IDLE_NANOS, (idle - SPIN_LIMIT + 1) * 1000L));
+            }
+        } catch (Throwable t) {
+            Utils.severe(t, "local link %s failed: %s", getName(), t.getMessage());
+        }
+        in.close();
+        out.close();
+        delete(dir);
+        synchronized (links) {
+            links.remove(this);
+        }
+        conn.onKilled();
+        conn.onClosed();
+        finished = true;
+        drainFlushing();
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single producer, single consumer byte ring in a memory mapped file.
+ * <p>
+ * One process writes and another reads. Each side only ever moves its own
+ * position, and the positions only grow, so the two never need a lock.
+ * The positions live on separate cache lines and are aligned longs. A
+ * position is published with an ordered store after the data is copied,
+ * and the other side's position is read with a volatile load before the
+ * data is touched, both straight on the mapped memory through Unsafe,
+ * which is looked up by name so the build doesn't depend on it. Without
+ * it there's no safe way to order the accesses, so rings can't be used
+ * at all, see {@link #isSupported()}.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class LocalRing {
+
+    private static final int MAGIC = 0x54524c52;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int WRITE_OFFSET = 64;
+    private static final int READ_OFFSET = 128;
+    private static final int CLOSED_OFFSET = 192;
+    private static final int HEADER_SIZE = 256;
+
+    private static Object unsafe = null;
+    private static Method getLong = null;
+    private static Method getLongVolatile = null;
+    private static Method putOrderedLong = null;
+    private static Method getIntVolatile = null;
+    private static Method putIntVolatile = null;
+    private static long addressOffset = 0;
+
+    static {
+        try {
+            Class<?> cls = Class.forName("sun.misc.Unsafe");
+            Field f = cls.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object u = f.get(null);
+            Method objectFieldOffset = cls.getMethod("objectFieldOffset", Field.class);
+            addressOffset = (Long)objectFieldOffset.invoke(u, Buffer.class.getDeclaredField("address"));
+            getLong = cls.getMethod("getLong", Object.class, long.class);
+            getLongVolatile = cls.getMethod("getLongVolatile", Object.class, long.class);
+            putOrderedLong = cls.getMethod("putOrderedLong", Object.class, long.class, long.class);
+            getIntVolatile = cls.getMethod("getIntVolatile", Object.class, long.class);
+            putIntVolatile = cls.getMethod("putIntVolatile", Object.class, long.class, int.class);
+            unsafe = u;
+        } catch (Throwable t) {
+            unsafe = null;
+        }
+    }
+
+    // can rings be used on this JVM?
+    static boolean isSupported() {
+        return unsafe != null;
+    }
+
+    private static Object invoke(Method method, Object... args) {
+        try {
+            return method.invoke(unsafe, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(method.getName() + ": " + e.getMessage());
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(method.getName() + ": " + e.getCause().getMessage());
+        }
+    }
+
+    // creates a new, empty ring, capacity is rounded up to a power of 2
+    static LocalRing create(File file, int capacity) throws IOException {
+        checkSupported();
+        int n = 1;
+        while (n < capacity) n <<= 1;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(HEADER_SIZE + n);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + n);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(CAPACITY_OFFSET, n);
+            buffer.putLong(WRITE_OFFSET, 0);
+            buffer.putLong(READ_OFFSET, 0);
+            buffer.putInt(CLOSED_OFFSET, 0);
+            // written last so the other side never sees a half initialized header
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.force();
+            return new LocalRing(file, buffer, n);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // opens a ring created by the other side
+    static LocalRing open(File file) throws IOException {
+        checkSupported();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() <= HEADER_SIZE)
+                throw new IOException("local ring '" + file + "' is too short");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC)
+                throw new IOException("local ring '" + file + "' is not initialized");
+            int capacity = buffer.getInt(CAPACITY_OFFSET);
+            if ((capacity <= 0) || ((capacity & (capacity - 1)) != 0) || ((HEADER_SIZE + capacity) > raf.length()))
+                throw new IOException("local ring '" + file + "' has an invalid capacity");
+            return new LocalRing(file, buffer, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void checkSupported() throws IOException {
+        if (unsafe == null)
+            throw new IOException("local rings need sun.misc.Unsafe, which this JVM doesn't provide");
+    }
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    // only used by the one thread in this process that reads or writes the ring
+    private final ByteBuffer data;
+    private final int capacity;
+    private final int mask;
+    // the mapped memory
+    private final long address;
+
+    private LocalRing(File file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        mask = capacity - 1;
+        address = (Long)invoke(getLong, buffer, addressOffset);
+        buffer.position(HEADER_SIZE);
+        buffer.limit(HEADER_SIZE + capacity);
+        data = buffer.slice();
+        buffer.clear();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    // producer side, copies as much of src as fits and returns the number of bytes copied
+    int write(ByteBuffer src) {
+        long w = getPosition(WRITE_OFFSET);
+        long r = getPosition(READ_OFFSET);
+        int free = capacity - (int)(w - r);
+        int num = Math.min(free, src.remaining());
+        if (num == 0) return 0;
+        int index = (int)(w & mask);
+        int first = Math.min(num, capacity - index);
+        int limit = src.limit();
+        src.limit(src.position() + first);
+        data.position(index);
+        data.put(src);
+        if (first < num) {
+            src.limit(src.position() + (num - first));
+            data.position(0);
+            data.put(src);
+        }
+        src.limit(limit);
+        putPosition(WRITE_OFFSET, w + num);
+        return num;
+    }
+
+    // consumer side, copies as much as is available into dst and returns the number of bytes copied
+    int read(ByteBuffer dst) {
+        long w = getPosition(WRITE_OFFSET);
+        long r = getPosition(READ_OFFSET);
+        int num = Math.min((int)(w - r), dst.remaining());
+        if (num == 0) return 0;
+        int index = (int)(r & mask);
+        int first = Math.min(num, capacity - index);
+        data.limit(index + first);
+        data.position(index);
+        dst.put(data);
+        if (first < num) {
+            data.limit(num - first);
+            data.position(0);
+            dst.put(data);
+        }
+        data.clear();
+        putPosition(READ_OFFSET, r + num);
+        return num;
+    }
+
+    // data accesses after this can't move before it
+    private long getPosition(int offset) {
+        return (Long)invoke(getLongVolatile, null, address + offset);
+    }
+
+    // data accesses before this can't move after it
+    private void putPosition(int offset, long pos) {
+        invoke(putOrderedLong, null, address + offset, pos);
+    }
+
+    boolean isEmpty() {
+        return getPosition(WRITE_OFFSET) == getPosition(READ_OFFSET);
+    }
+
+    // either side can close the ring, the other side notices on its next poll
+    void close() {
+        invoke(putIntVolatile, null, address + CLOSED_OFFSET, 1);
+    }
+
+    boolean isClosed() {
+        return (Integer)invoke(getIntVolatile, null, address + CLOSED_OFFSET) != 0;
+    }
+
+}
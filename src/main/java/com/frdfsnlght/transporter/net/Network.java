@@ -15,6 +15,7 @@
  */
 package com.frdfsnlght.transporter.net;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -23,22 +24,16 @@ import java.net.NetworkInterface;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 import com.frdfsnlght.transporter.Config;
 import com.frdfsnlght.transporter.Context;
 import com.frdfsnlght.transporter.Global;
@@ -49,7 +44,9 @@ import com.frdfsnlght.transporter.PermissionsException;
 import com.frdfsnlght.transporter.Server;
 import com.frdfsnlght.transporter.Servers;
 import com.frdfsnlght.transporter.ThreadState;
+import com.frdfsnlght.transporter.TypeMap;
 import com.frdfsnlght.transporter.Utils;
+import com.frdfsnlght.transporter.WorkQueue;
 
 /**
  *
@@ -57,12 +54,19 @@ import com.frdfsnlght.transporter.Utils;
  */
 public final class Network {
 
+    private static final long TIMER_TICK = 100;
+    private static final int TIMER_SLOTS = 512;
+
     private static final Set<String> OPTIONS = new HashSet<String>();
     private static final Set<String> RESTART_OPTIONS = new HashSet<String>();
     private static final Options options;
 
     static {
         OPTIONS.add("readBufferSize");
+        OPTIONS.add("reactorThreads");
+        OPTIONS.add("compressionThreshold");
+        OPTIONS.add("queueLimit");
+        OPTIONS.add("chatQueueLimit");
         OPTIONS.add("selectInterval");
         OPTIONS.add("usePrivateAddress");
         OPTIONS.add("sendPrivateAddress");
@@ -73,12 +77,18 @@ public final class Network {
         OPTIONS.add("key");
         OPTIONS.add("suppressConnectionAttempts");
         OPTIONS.add("bungeeServer");
+        OPTIONS.add("relayHub");
+        OPTIONS.add("localName");
+        OPTIONS.add("localDirectory");
 
         RESTART_OPTIONS.add("readBufferSize");
+        RESTART_OPTIONS.add("reactorThreads");
         RESTART_OPTIONS.add("selectInterval");
         RESTART_OPTIONS.add("clusterName");
         RESTART_OPTIONS.add("listenAddress");
         RESTART_OPTIONS.add("key");
+        RESTART_OPTIONS.add("localName");
+        RESTART_OPTIONS.add("localDirectory");
 
         options = new Options(Network.class, OPTIONS, "trp.network", new OptionsListener() {
             @Override
@@ -97,6 +107,16 @@ public final class Network {
     }
 
 
+    // true if the address is a local shared memory address like "local:name"
+    public static boolean isLocalAddress(String addrStr) {
+        return LocalLink.isLocalAddress(addrStr);
+    }
+
+    // throws IllegalArgumentException if the local address is invalid
+    public static void checkLocalAddress(String addrStr) {
+        LocalLink.getLocalName(addrStr);
+    }
+
     public static InetSocketAddress makeInetSocketAddress(String addrStr, String defAddr, int defPort, boolean allowWildcard) throws IllegalArgumentException {
         String addrPart = defAddr;
         String portPart = defPort + "";
@@ -186,14 +206,27 @@ public final class Network {
     private static String key;
     private static int selectInterval;
     private static int readBufferSize;
+    private static int reactorThreads;
+    private static int compressionThreshold;
+    private static int queueLimit;
+    private static int chatQueueLimit;
+    private static String localName;
+    private static File localDirectory;
     private static Selector selector = null;
-    private static final Set<Pattern> banned = new HashSet<Pattern>();
-    private static final Map<SocketChannel,Connection> channels = new HashMap<SocketChannel,Connection>();
+    private static volatile Reactor[] reactors = null;
+    // replaced, never modified, so the acceptor can read it without locking
+    private static volatile AddressMatcher banned = new AddressMatcher(new ArrayList<AddressMatcher.Entry>());
+    private static final Object bannedLock = new Object();
+
+    // outbound connections requested before the reactors are running
     private static final Set<Connection> opening = new HashSet<Connection>();
-    private static final Set<Connection> closing = new HashSet<Connection>();
+
+    // request and reservation timeouts, keepalives and reconnects
+    private static final TimerWheel timers = new TimerWheel("Transporter network timer", TIMER_TICK, TIMER_SLOTS);
 
     // called from main thread
     public static void start(Context ctx) {
+        timers.start();
         try {
             if (listenAddress == null)
                 throw new NetworkException("listenAddress is not set");
@@ -223,6 +256,7 @@ public final class Network {
 
     // called from main thread
     public static void stop(Context ctx) {
+        timers.stop();
         if ((networkThread == null) ||
             (! networkThread.isAlive()) ||
             (state != ThreadState.RUNNING)) return;
@@ -248,30 +282,36 @@ public final class Network {
             ctx.warn("listenAddress: %s", e.getMessage());
         }
         key = getKey();
+        Servers.rebuildKeyIndex();
         selectInterval = getSelectInterval();
         readBufferSize = getReadBufferSize();
-
-        banned.clear();
+        reactorThreads = getReactorThreads();
+        compressionThreshold = getCompressionThreshold();
+        queueLimit = getQueueLimit();
+        chatQueueLimit = getChatQueueLimit();
+        localName = getLocalName();
+        String dir = getLocalDirectory();
+        // servers sharing local links must point this at the same private directory
+        localDirectory = (dir == null) ? new File(Global.plugin.getDataFolder(), "local") : new File(dir);
+
+        List<AddressMatcher.Entry> entries = new ArrayList<AddressMatcher.Entry>();
         List<String> addresses = Config.getStringList("network.bannedAddresses");
         if (addresses != null)
             for (String addressPattern : addresses) {
                 try {
-                    Pattern pattern = Pattern.compile(addressPattern);
-                    banned.add(pattern);
-                } catch (PatternSyntaxException pse) {
-                    ctx.warn("ignored invalid bannedAddress pattern '%s': %s", addressPattern, pse.getMessage());
+                    entries.add(new AddressMatcher.Entry(addressPattern));
+                } catch (IllegalArgumentException iae) {
+                    ctx.warn("ignored invalid bannedAddress pattern '%s': %s", addressPattern, iae.getMessage());
                 }
             }
+        synchronized (bannedLock) {
+            banned = new AddressMatcher(entries);
+        }
         //if (restart) Network.start(ctx);
     }
 
     public static void onConfigSave() {
-        synchronized (banned) {
-            List<String> bannedAddresses = new ArrayList<String>(banned.size());
-            for (Pattern p : banned)
-                bannedAddresses.add(p.pattern());
-            Config.setPropertyDirect("network.bannedAddresses", bannedAddresses);
-        }
+        Config.setPropertyDirect("network.bannedAddresses", getBannedAddresses());
     }
 
     /* Begin options */
@@ -286,6 +326,49 @@ public final class Network {
         Config.setPropertyDirect("network.readBufferSize", i);
     }
 
+    public static int getReactorThreads() {
+        return Config.getIntDirect("network.reactorThreads", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+    }
+
+    public static void setReactorThreads(int i) {
+        if ((i < 1) || (i > 32))
+            throw new IllegalArgumentException("reactorThreads must be between 1 and 32");
+        Config.setPropertyDirect("network.reactorThreads", i);
+    }
+
+    public static int getCompressionThreshold() {
+        return Config.getIntDirect("network.compressionThreshold", 1024);
+    }
+
+    public static void setCompressionThreshold(int i) {
+        if ((i != 0) && (i < 64))
+            throw new IllegalArgumentException("compressionThreshold must be 0 (disabled) or at least 64");
+        Config.setPropertyDirect("network.compressionThreshold", i);
+        compressionThreshold = i;
+    }
+
+    public static int getQueueLimit() {
+        return Config.getIntDirect("network.queueLimit", 16 * 1024 * 1024);
+    }
+
+    public static void setQueueLimit(int i) {
+        if ((i != 0) && (i < 65536))
+            throw new IllegalArgumentException("queueLimit must be 0 (unlimited) or at least 65536");
+        Config.setPropertyDirect("network.queueLimit", i);
+        queueLimit = i;
+    }
+
+    public static int getChatQueueLimit() {
+        return Config.getIntDirect("network.chatQueueLimit", 256 * 1024);
+    }
+
+    public static void setChatQueueLimit(int i) {
+        if ((i != 0) && (i < 4096))
+            throw new IllegalArgumentException("chatQueueLimit must be 0 (unlimited) or at least 4096");
+        Config.setPropertyDirect("network.chatQueueLimit", i);
+        chatQueueLimit = i;
+    }
+
     public static int getSelectInterval() {
         return Config.getIntDirect("network.selectInterval", 30000);
     }
@@ -330,6 +413,35 @@ public final class Network {
         Config.setPropertyDirect("network.bungeeServer", s);
     }
 
+    public static boolean getRelayHub() {
+        return Config.getBooleanDirect("network.relayHub", false);
+    }
+
+    public static void setRelayHub(boolean b) {
+        Config.setPropertyDirect("network.relayHub", b);
+        Servers.updateRelayRoutes();
+    }
+
+    public static String getLocalName() {
+        return Config.getStringDirect("network.localName", null);
+    }
+
+    public static void setLocalName(String s) {
+        if ((s != null) && (s.equals("-") || s.equals("*"))) s = null;
+        if (s != null)
+            checkLocalAddress(LocalLink.SCHEME + s);
+        Config.setPropertyDirect("network.localName", s);
+    }
+
+    public static String getLocalDirectory() {
+        return Config.getStringDirect("network.localDirectory", null);
+    }
+
+    public static void setLocalDirectory(String s) {
+        if ((s != null) && (s.equals("-") || s.equals("*"))) s = null;
+        Config.setPropertyDirect("network.localDirectory", s);
+    }
+
     public static int getReconnectInterval() {
         return Config.getIntDirect("network.reconnectInterval", 60000);
     }
@@ -394,62 +506,83 @@ public final class Network {
         return key;
     }
 
+    public static int getCachedCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public static int getCachedQueueLimit() {
+        return queueLimit;
+    }
+
+    // 0 means no limit
+    static int getCachedLaneLimit(Connection.Lane lane) {
+        switch (lane) {
+            case CHAT: return chatQueueLimit;
+            default: return 0;
+        }
+    }
+
     public static boolean isStopped() {
         return (state == ThreadState.STOP) || (state == ThreadState.STOPPING) || (state == ThreadState.STOPPED);
     }
 
     // called from main thread
     public static boolean addBannedAddress(String addrStr) throws NetworkException {
-        Pattern pattern;
+        AddressMatcher.Entry entry;
         try {
-            pattern = Pattern.compile(addrStr);
-        } catch (PatternSyntaxException pse) {
-            throw new NetworkException("invalid pattern: %s", pse.getMessage());
+            entry = new AddressMatcher.Entry(addrStr);
+        } catch (IllegalArgumentException iae) {
+            throw new NetworkException("%s", iae.getMessage());
         }
-        synchronized (banned) {
-            if (banned.contains(pattern)) return false;
-            banned.remove(pattern);
+        synchronized (bannedLock) {
+            if (banned.find(addrStr) != null) return false;
+            List<AddressMatcher.Entry> entries = new ArrayList<AddressMatcher.Entry>(banned.getEntries());
+            entries.add(entry);
+            banned = new AddressMatcher(entries);
             return true;
         }
     }
 
     // called from main thread
     public static boolean removeBannedAddress(String addrStr) {
-        synchronized (banned) {
-            Iterator<Pattern> i = banned.iterator();
-            while (i.hasNext()) {
-                Pattern p = i.next();
-                if (p.pattern().equals(addrStr)) {
-                    i.remove();
-                    return true;
-                }
-            }
+        synchronized (bannedLock) {
+            AddressMatcher.Entry entry = banned.find(addrStr);
+            if (entry == null) return false;
+            List<AddressMatcher.Entry> entries = new ArrayList<AddressMatcher.Entry>(banned.getEntries());
+            entries.remove(entry);
+            banned = new AddressMatcher(entries);
+            return true;
         }
-        return false;
     }
 
     // called from main thread
     public static void removeAllBannedAddresses() {
-        synchronized (banned) {
-            banned.clear();
+        synchronized (bannedLock) {
+            banned = new AddressMatcher(new ArrayList<AddressMatcher.Entry>());
         }
     }
 
     public static List<String> getBannedAddresses() {
         List<String> l = new ArrayList<String>();
-        synchronized (banned) {
-            for (Pattern pattern : banned) {
-                l.add(pattern.toString());
-            }
-        }
+        for (AddressMatcher.Entry entry : banned.getEntries())
+            l.add(entry.getPattern());
         return l;
     }
 
+    // the number of connections rejected by a ban since it was added or loaded
+    public static long getBannedAddressHits(String addrStr) {
+        AddressMatcher.Entry entry = banned.find(addrStr);
+        return (entry == null) ? 0 : entry.getHits();
+    }
+
     /* Networking gunk */
 
+    // The network thread only accepts connections, all connection I/O
+    // happens on the reactor threads.
     private static void run() {
 
         ServerSocketChannel serverChannel = null;
+        Reactor[] rs = null;
 
         try {
             // create the selector
@@ -461,7 +594,26 @@ public final class Network {
             serverChannel.socket().bind(listenAddress);
             serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
-            Utils.info("network manager listening on %s:%d", listenAddress.getAddress().getHostAddress(), listenAddress.getPort());
+            // start the reactors
+            rs = new Reactor[reactorThreads];
+            for (int i = 0; i < rs.length; i++) {
+                rs[i] = new Reactor(i, selectInterval, readBufferSize);
+                rs[i].start();
+            }
+            reactors = rs;
+            synchronized (opening) {
+                for (Connection conn : opening)
+                    getReactor().open(conn);
+                opening.clear();
+            }
+
+            Utils.info("network manager listening on %s:%d with %d reactor(s)", listenAddress.getAddress().getHostAddress(), listenAddress.getPort(), rs.length);
+            if (localName != null)
+                try {
+                    LocalLink.listen(localDirectory, localName);
+                } catch (IOException ioe) {
+                    Utils.warning("unable to accept local connections: %s", ioe.getMessage());
+                }
             state = ThreadState.RUNNING;
 
             // processing
@@ -469,55 +621,7 @@ public final class Network {
                 if (state == ThreadState.STOP) {
                     state = ThreadState.STOPPING;
                     serverChannel.keyFor(selector).cancel();
-                    synchronized (closing) {
-                        closing.addAll(channels.values());
-                        for (Connection conn : closing)
-                            wantWrite(conn);
-                    }
-                    synchronized (opening) {
-                        opening.removeAll(channels.values());
-                    }
-                }
-                if ((state == ThreadState.STOPPING) && channels.isEmpty()) break;
-
-                // Close connections that are still waiting to open
-                synchronized (closing) {
-                    if (! closing.isEmpty()) {
-                        for (Connection conn : new HashSet<Connection>(closing)) {
-                            if (conn.onHasWriteData()) continue;
-                            kill(conn);
-                            conn.onClosed();
-                        }
-                    }
-                }
-                if ((state == ThreadState.STOPPING) && channels.isEmpty()) break;
-
-                // Open connections that are waiting
-                synchronized (opening) {
-                    if (! opening.isEmpty()) {
-                        for (Connection conn : opening) {
-                            try {
-                                SocketChannel channel = SocketChannel.open();
-                                channel.configureBlocking(false);
-                                try {
-                                    InetSocketAddress address = makeInetSocketAddress(conn.getConnectAddress(), "localhost", Global.DEFAULT_PLUGIN_PORT, false);
-                                    channel.connect(address);
-                                } catch (Exception e) {}
-                                channel.register(selector, SelectionKey.OP_CONNECT);
-                                channels.put(channel, conn);
-                                conn.onOpening(channel);
-                            } catch (IOException e) {
-                                conn.onException(e);
-                            }
-                        }
-                        opening.clear();
-                    }
-                }
-
-                // Tell connected servers to do keep alives
-                for (Server server : Servers.getAll()) {
-                    server.sendKeepAlive();
-                    server.checkKeepAlive();
+                    break;
                 }
 
                 if (selector.select(selectInterval) > 0) {
@@ -527,9 +631,6 @@ public final class Network {
                         keys.remove();
                         if (! selKey.isValid()) continue;
                         if (selKey.isAcceptable()) onAccept(selKey);
-                        else if (selKey.isConnectable()) onConnect(selKey);
-                        else if (selKey.isReadable()) onRead(selKey);
-                        else if (selKey.isWritable()) onWrite(selKey);
                     }
                 }
 
@@ -540,6 +641,13 @@ public final class Network {
         } catch (IOException ioe) {
             Utils.severe(ioe, "network manager IOException: " + ioe.getMessage());
         }
+
+        LocalLink.stop();
+        // reactors close their connections before stopping
+        if (rs != null)
+            for (Reactor r : rs)
+                if (r != null) r.stop();
+        reactors = null;
         state = ThreadState.STOPPED;
 
         if (selector != null)
@@ -553,190 +661,150 @@ public final class Network {
 
     }
 
-    // called from selection thread
-    private static void kill(Connection conn) {
-        Utils.debug("kill %s", conn);
-        SocketChannel channel = conn.getChannel();
-        if (channel != null) {
-            SelectionKey selKey = channel.keyFor(selector);
-            if (selKey != null)
-                selKey.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
-            channels.remove(channel);
-        }
-        synchronized (closing) {
-            closing.remove(conn);
+    // runs the task on the timer thread after delay millis, the task must not block
+    public static TimerWheel.Timeout schedule(Runnable task, long delay) {
+        return timers.schedule(task, delay);
+    }
+
+    // runs the task on the main thread after delay millis, unless the timeout is cancelled first
+    public static TimerWheel.Timeout scheduleSync(Runnable task, long delay, WorkQueue.Priority priority) {
+        SyncTask syncTask = new SyncTask(task, priority);
+        syncTask.timeout = timers.schedule(syncTask, delay);
+        return syncTask.timeout;
+    }
+
+    public static int getPendingTimers() {
+        return timers.getPending();
+    }
+
+    private static final class SyncTask implements Runnable {
+
+        private final Runnable task;
+        private final WorkQueue.Priority priority;
+        private volatile TimerWheel.Timeout timeout;
+
+        SyncTask(Runnable task, WorkQueue.Priority priority) {
+            this.task = task;
+            this.priority = priority;
         }
-        synchronized (opening) {
-            opening.remove(conn);
+
+        @Override
+        public void run() {
+            Utils.fire(new Runnable() {
+                @Override
+                public void run() {
+                    // the timeout can be cancelled after it expired but before we got here
+                    if ((timeout != null) && timeout.isCancelled()) return;
+                    task.run();
+                }
+            }, priority);
         }
-        conn.onKilled();
+
+    }
+
+    // returns the reactor with the fewest connections
+    private static Reactor getReactor() {
+        Reactor[] rs = reactors;
+        if (rs == null) return null;
+        Reactor best = null;
+        for (Reactor r : rs)
+            if ((best == null) || (r.getLoad() < best.getLoad())) best = r;
+        return best;
     }
 
     private static void onAccept(SelectionKey key) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
         SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
         channel.configureBlocking(false);
 
         Socket socket = channel.socket();
         InetSocketAddress remoteAddress = (InetSocketAddress)socket.getRemoteSocketAddress();
 
         // rejected banned addresses
-        synchronized (banned) {
-            String addr = remoteAddress.getAddress().getHostAddress();
-            for (Pattern p : banned) {
-                if (p.matcher(addr).matches()) {
-                    Utils.info("rejected connection from banned address '%s'", addr);
-                    try {
-                        socket.close();
-                    } catch (IOException ioe) {}
-                    return;
-                }
-            }
-        }
-
-        Connection conn = new Connection(channel);
-        channels.put(channel, conn);
-        channel.register(selector, SelectionKey.OP_READ);
-        conn.onAccepted();
-    }
-
-    private static void onConnect(SelectionKey key) {
-        SocketChannel channel = (SocketChannel)key.channel();
-        Connection conn = channels.get(channel);
-        if (conn == null) {
-            key.cancel();
+        AddressMatcher.Entry ban = banned.match(remoteAddress.getAddress());
+        if (ban != null) {
+            Utils.info("rejected connection from banned address '%s' (%s)", remoteAddress.getAddress().getHostAddress(), ban.getPattern());
             try {
-                channel.close();
-            } catch (IOException e) {}
+                socket.close();
+            } catch (IOException ioe) {}
             return;
         }
 
-        try {
-            if (channel.isConnectionPending())
-                channel.finishConnect();
-        } catch (IOException e) {
-            conn.onException(e);
-            return;
-        }
-        key.interestOps(SelectionKey.OP_READ);
-        conn.onOpened();
+        getReactor().accept(channel);
     }
 
-    private static void onRead(SelectionKey key) {
-        SocketChannel channel = (SocketChannel)key.channel();
-        Connection conn = channels.get(channel);
-        if (conn == null) {
-            key.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
+    // can be called from any thread
+    public static void open(Connection conn) {
+        String address = conn.getConnectAddress();
+        if (LocalLink.isLocalAddress(address)) {
+            LocalLink.connect(conn, localDirectory, LocalLink.getLocalName(address));
             return;
         }
-
-        ByteBuffer buffer = ByteBuffer.allocate(readBufferSize);
-        int numRead = 0;
-        while (true) {
-            try {
-                numRead = channel.read(buffer);
-            } catch (IOException e) {
-                conn.onException(e);
-                return;
-            }
-            Utils.debug("read %d from %s", numRead, conn);
-            if (numRead <= 0) break;
-            conn.onReadData(Arrays.copyOfRange(buffer.array(), 0, numRead));
-            if (numRead < readBufferSize) break;
-            buffer.clear();
-        }
-        if (numRead == -1) {
-            kill(conn);
-            conn.onClosed();
+        synchronized (opening) {
+            Reactor reactor = getReactor();
+            if (reactor == null)
+                opening.add(conn);
+            else
+                reactor.open(conn);
         }
     }
 
-    private static void onWrite(SelectionKey key) {
-        SocketChannel channel = (SocketChannel)key.channel();
-        Connection conn = channels.get(channel);
-        if (conn == null) {
-            key.cancel();
-            try {
-                channel.close();
-            } catch (IOException e) {}
+    // can be called from any thread
+    public static void close(Connection conn) {
+        LocalLink local = conn.getLocalLink();
+        if (local != null) {
+            local.close();
             return;
         }
-
-        ByteBuffer buffer;
-        byte[] data;
-        int numWrote;
-        while (true) {
-            data = conn.onGetWriteData();
-            if (data == null) break;
-            buffer = ByteBuffer.wrap(data);
-            try {
-                numWrote = channel.write(buffer);
-            } catch (IOException e) {
-                conn.onException(e);
-                return;
-            }
-            Utils.debug("wrote %d to %s", numWrote, conn);
-            if (numWrote == data.length) continue;
-            conn.onPutWriteData(Arrays.copyOfRange(data, numWrote, data.length - 1));
-            break;
-        }
-        if (! conn.onHasWriteData()) {
-            key.interestOps(SelectionKey.OP_READ);
-            synchronized (closing) {
-                if (closing.contains(conn)) {
-                    kill(conn);
-                    conn.onClosed();
-                    return;
-                }
+        Reactor reactor = conn.getReactor();
+        if (reactor != null)
+            reactor.close(conn);
+        else
+            synchronized (opening) {
+                opening.remove(conn);
             }
-            conn.onWriteCompleted();
-        }
     }
 
-    // can be called from any thread
-    public static void open(Connection conn) {
-        synchronized (opening) {
-            opening.add(conn);
+    // Sends the message to every connected server. The message is encoded
+    // once and the same bytes are queued on each connection, only compression
+    // and encryption are done per connection. Servers reached through a relay
+    // hub get the message from the hub, which is only sent it once. The message
+    // must not be changed after this is called.
+    public static void broadcast(TypeMap message) {
+        EncodedMessage encoded = null;
+        for (Server server : Servers.getAll()) {
+            if (server.isRelayed() || (! server.isConnectionConnected())) continue;
+            if (encoded == null) encoded = new EncodedMessage(message);
+            server.sendBroadcast(encoded);
         }
-        if (selector != null)
-            selector.wakeup();
     }
 
     // can be called from any thread
-    public static void close(Connection conn) {
-        synchronized (closing) {
-            closing.add(conn);
-        }
-        wantWrite(conn);
+    public static void flush(Server server) {
+        Connection conn = server.getConnection();
+        LocalLink local = (conn == null) ? null : conn.getLocalLink();
+        Reactor reactor = (conn == null) ? null : conn.getReactor();
+        if (local != null)
+            local.flush(server);
+        else if (reactor != null)
+            reactor.flush(server);
+        else
+            // closed connections are flushed right here
+            server.flushOutbound();
     }
 
     // can be called from any thread
     public static void wantWrite(Connection conn) {
         if (conn == null) return;
-        if (conn.getChannel() == null) return;
-        SelectionKey selKey = conn.getChannel().keyFor(selector);
-        if ((selKey == null) || (! selKey.isValid())) return;
-        selKey.interestOps(selKey.interestOps() | SelectionKey.OP_WRITE);
-
-        /*
-        try {
-            Utils.debug("wantWrite to %s: %s %s %s %s", conn,
-                conn.getChannel().isOpen(),
-                conn.getChannel().isConnected(),
-                conn.getChannel().socket().isClosed(),
-                conn.getChannel().socket().isConnected());
-        } catch (Throwable t) {
-            Utils.debug("wantWrite to %s: got throwable: %s: %s", conn, t.getClass().getName(), t.getMessage());
+        LocalLink local = conn.getLocalLink();
+        if (local != null) {
+            local.wakeup();
+            return;
         }
-        */
-
-        selector.wakeup();
+        Reactor reactor = conn.getReactor();
+        if (reactor != null)
+            reactor.wantWrite(conn);
     }
 
 }
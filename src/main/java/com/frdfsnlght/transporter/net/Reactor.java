@@ -0,0 +1,391 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.frdfsnlght.transporter.Global;
+import com.frdfsnlght.transporter.Server;
+import com.frdfsnlght.transporter.ThreadState;
+import com.frdfsnlght.transporter.Utils;
+
+/**
+ * A selector thread that owns a disjoint set of connections.
+ * <p>
+ * All socket I/O, decryption and decoding for a connection happens on the
+ * thread of the reactor it was assigned to, so a slow message on one link
+ * only delays the other links sharing that reactor.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+final class Reactor implements Runnable {
+
+    private static final int MAX_GATHER_BUFFERS = 64;
+
+    private final int id;
+    private final int selectInterval;
+    private final int readBufferSize;
+    private final Selector selector;
+    private final AtomicInteger load = new AtomicInteger();
+    private Thread thread;
+    private volatile ThreadState state = ThreadState.STOPPED;
+
+    // only used by the reactor thread
+    private final Map<SocketChannel,Connection> channels = new HashMap<SocketChannel,Connection>();
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+
+    private final Set<Connection> opening = new HashSet<Connection>();
+    private final List<SocketChannel> accepted = new ArrayList<SocketChannel>();
+    private final Set<Connection> closing = new HashSet<Connection>();
+    private final Queue<Server> flushing = new ConcurrentLinkedQueue<Server>();
+
+    Reactor(int id, int selectInterval, int readBufferSize) throws IOException {
+        this.id = id;
+        this.selectInterval = selectInterval;
+        this.readBufferSize = readBufferSize;
+        readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+        selector = Selector.open();
+    }
+
+    @Override
+    public String toString() {
+        return "Reactor[" + id + "]";
+    }
+
+    // the number of connections assigned to this reactor
+    int getLoad() {
+        return load.get();
+    }
+
+    void start() {
+        state = ThreadState.RUNNING;
+        thread = new Thread(this, "Transporter network reactor " + id);
+        thread.start();
+    }
+
+    // called from the acceptor thread, waits for all connections to be closed
+    void stop() {
+        if (thread == null) return;
+        state = ThreadState.STOP;
+        selector.wakeup();
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {}
+        }
+        thread = null;
+    }
+
+    // can be called from any thread
+    void open(Connection conn) {
+        conn.setReactor(this);
+        load.incrementAndGet();
+        synchronized (opening) {
+            opening.add(conn);
+        }
+        selector.wakeup();
+    }
+
+    // called from the acceptor thread
+    void accept(SocketChannel channel) {
+        load.incrementAndGet();
+        synchronized (accepted) {
+            accepted.add(channel);
+        }
+        selector.wakeup();
+    }
+
+    // can be called from any thread
+    void close(Connection conn) {
+        synchronized (closing) {
+            closing.add(conn);
+        }
+        wantWrite(conn);
+    }
+
+    // can be called from any thread
+    void flush(Server server) {
+        flushing.offer(server);
+        selector.wakeup();
+    }
+
+    // can be called from any thread
+    void wantWrite(Connection conn) {
+        SocketChannel channel = conn.getChannel();
+        if (channel == null) {
+            selector.wakeup();
+            return;
+        }
+        SelectionKey selKey = channel.keyFor(selector);
+        if ((selKey == null) || (! selKey.isValid())) return;
+        selKey.interestOps(selKey.interestOps() | SelectionKey.OP_WRITE);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (state == ThreadState.STOP) {
+                    state = ThreadState.STOPPING;
+                    List<Connection> pending;
+                    synchronized (opening) {
+                        pending = new ArrayList<Connection>(opening);
+                        opening.clear();
+                    }
+                    synchronized (closing) {
+                        closing.addAll(channels.values());
+                        closing.addAll(pending);
+                        for (Connection conn : channels.values())
+                            wantWrite(conn);
+                    }
+                }
+
+                // Close connections that have nothing left to write
+                synchronized (closing) {
+                    if (! closing.isEmpty()) {
+                        for (Connection conn : new HashSet<Connection>(closing)) {
+                            if (conn.onHasWriteData() && (conn.getChannel() != null)) continue;
+                            kill(conn);
+                            conn.onClosed();
+                        }
+                    }
+                }
+                if ((state == ThreadState.STOPPING) && channels.isEmpty()) break;
+
+                // Register connections handed over by the acceptor
+                synchronized (accepted) {
+                    for (SocketChannel channel : accepted) {
+                        Connection conn = new Connection(channel);
+                        conn.setReactor(this);
+                        try {
+                            channel.register(selector, SelectionKey.OP_READ);
+                        } catch (IOException e) {
+                            kill(conn);
+                            continue;
+                        }
+                        channels.put(channel, conn);
+                        conn.onAccepted();
+                    }
+                    accepted.clear();
+                }
+
+                // Open connections that are waiting
+                synchronized (opening) {
+                    if (! opening.isEmpty()) {
+                        for (Connection conn : opening) {
+                            try {
+                                SocketChannel channel = SocketChannel.open();
+                                channel.configureBlocking(false);
+                                try {
+                                    InetSocketAddress address = Network.makeInetSocketAddress(conn.getConnectAddress(), "localhost", Global.DEFAULT_PLUGIN_PORT, false);
+                                    channel.connect(address);
+                                } catch (Exception e) {}
+                                channel.register(selector, SelectionKey.OP_CONNECT);
+                                channels.put(channel, conn);
+                                conn.onOpening(channel);
+                            } catch (IOException e) {
+                                conn.onException(e);
+                            }
+                        }
+                        opening.clear();
+                    }
+                }
+
+                // Send everything queued by servers since we were woken up
+                Server server;
+                while ((server = flushing.poll()) != null)
+                    server.flushOutbound();
+
+                if (selector.select(selectInterval) > 0) {
+                    Iterator keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey selKey = (SelectionKey)keys.next();
+                        keys.remove();
+                        if (! selKey.isValid()) continue;
+                        if (selKey.isConnectable()) onConnect(selKey);
+                        else if (selKey.isReadable()) onRead(selKey);
+                        else if (selKey.isWritable()) onWrite(selKey);
+                    }
+                }
+            }
+
+        } catch (IOException ioe) {
+            Utils.severe(ioe, "network reactor %d IOException: %s", id, ioe.getMessage());
+        }
+        state = ThreadState.STOPPED;
+
+        for (Connection conn : new ArrayList<Connection>(channels.values())) {
+            kill(conn);
+            conn.onClosed();
+        }
+        synchronized (accepted) {
+            for (SocketChannel channel : accepted)
+                try {
+                    channel.close();
+                } catch (IOException e) {}
+            accepted.clear();
+        }
+        try {
+            selector.close();
+        } catch (IOException ioe) {}
+    }
+
+    // called from reactor thread
+    private void kill(Connection conn) {
+        Utils.debug("kill %s", conn);
+        SocketChannel channel = conn.getChannel();
+        if (channel != null) {
+            SelectionKey selKey = channel.keyFor(selector);
+            if (selKey != null)
+                selKey.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            channels.remove(channel);
+        }
+        synchronized (closing) {
+            closing.remove(conn);
+        }
+        synchronized (opening) {
+            opening.remove(conn);
+        }
+        if (conn.getReactor() == this) {
+            conn.setReactor(null);
+            load.decrementAndGet();
+        }
+        conn.onKilled();
+    }
+
+    private void onConnect(SelectionKey key) {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn = channels.get(channel);
+        if (conn == null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            return;
+        }
+
+        try {
+            if (channel.isConnectionPending())
+                channel.finishConnect();
+        } catch (IOException e) {
+            conn.onException(e);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        conn.onOpened();
+    }
+
+    private void onRead(SelectionKey key) {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn = channels.get(channel);
+        if (conn == null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            return;
+        }
+
+        // the read buffer is owned by the reactor thread and reused for every read
+        ByteBuffer buffer = readBuffer;
+        int numRead = 0;
+        while (true) {
+            buffer.clear();
+            try {
+                numRead = channel.read(buffer);
+            } catch (IOException e) {
+                conn.onException(e);
+                return;
+            }
+            Utils.debug("read %d from %s", numRead, conn);
+            if (numRead <= 0) break;
+            buffer.flip();
+            conn.onReadData(buffer);
+            if (numRead < readBufferSize) break;
+        }
+        if (numRead == -1) {
+            kill(conn);
+            conn.onClosed();
+        }
+    }
+
+    private void onWrite(SelectionKey key) {
+        SocketChannel channel = (SocketChannel)key.channel();
+        Connection conn = channels.get(channel);
+        if (conn == null) {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {}
+            return;
+        }
+
+        // write as many queued buffers as possible with each call
+        ByteBuffer[] buffers = writeBuffers;
+        int count;
+        long numWrote;
+        while (true) {
+            count = conn.onGetWriteData(buffers);
+            if (count == 0) break;
+            try {
+                numWrote = channel.write(buffers, 0, count);
+            } catch (IOException e) {
+                Arrays.fill(buffers, 0, count, null);
+                conn.onException(e);
+                return;
+            }
+            Utils.debug("wrote %d to %s", numWrote, conn);
+            boolean partial = buffers[count - 1].hasRemaining();
+            Arrays.fill(buffers, 0, count, null);
+            conn.onWroteData(numWrote);
+            // the socket buffer is full, wait until it's writable again
+            if (partial) break;
+        }
+        if (! conn.onHasWriteData()) {
+            key.interestOps(SelectionKey.OP_READ);
+            synchronized (closing) {
+                if (closing.contains(conn)) {
+                    kill(conn);
+                    conn.onClosed();
+                    return;
+                }
+            }
+            conn.onWriteCompleted();
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Constructor;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Formatter;
+import java.util.List;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption for a single direction of a connection, using
+ * a session key negotiated during the handshake.
+ * <p>
+ * Each sealed record is a 12 byte nonce followed by the cipher text and a
+ * 16 byte authentication tag. The nonce is a per-key counter, so a key must
+ * only ever be used by one SessionCipher. Records must be opened in the
+ * order they were sealed, anything else, including a replayed record, is
+ * rejected.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class SessionCipher {
+
+    public static final String LEGACY = "legacy";
+    public static final String AES_GCM = "aes-gcm";
+    public static final String CHACHA20_POLY1305 = "chacha20-poly1305";
+
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+    public static final int OVERHEAD = NONCE_SIZE + TAG_SIZE;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static List<String> available = null;
+
+    // GCMParameterSpec only exists on Java 7 and later, we still run on 6
+    private static final Constructor<?> gcmParameters;
+
+    static {
+        Constructor<?> c = null;
+        try {
+            c = Class.forName("javax.crypto.spec.GCMParameterSpec").getConstructor(int.class, byte[].class, int.class, int.class);
+        } catch (Exception e) {}
+        gcmParameters = c;
+    }
+
+    // returns the session ciphers supported by this JRE, in order of preference,
+    // the legacy cipher is used when there aren't any
+    public static synchronized List<String> getAvailable() {
+        if (available == null) {
+            List<String> l = new ArrayList<String>();
+            for (String name : new String[] { AES_GCM, CHACHA20_POLY1305 }) {
+                if (AES_GCM.equals(name) && (gcmParameters == null)) continue;
+                try {
+                    javax.crypto.Cipher.getInstance(getTransformation(name));
+                    l.add(name);
+                } catch (GeneralSecurityException e) {}
+            }
+            available = Collections.unmodifiableList(l);
+        }
+        return available;
+    }
+
+    public static boolean isValidName(String name) {
+        return LEGACY.equals(name) || AES_GCM.equals(name) || CHACHA20_POLY1305.equals(name);
+    }
+
+    public static String createNonce() {
+        byte[] nonce = new byte[16];
+        synchronized (random) {
+            random.nextBytes(nonce);
+        }
+        Formatter f = new Formatter();
+        for (byte b : nonce) f.format("%02x", b);
+        return f.toString();
+    }
+
+    // Both sides know both network keys and both nonces, but only the
+    // session keys derived from them are ever used for encryption.
+    // direction is "client" for data sent by the connecting side, "server" otherwise.
+    public static SessionCipher create(String name, boolean encrypt, String clientKey, String serverKey, String clientNonce, String serverNonce, String direction) throws GeneralSecurityException {
+        try {
+            MessageDigest dig = MessageDigest.getInstance("SHA-256");
+            byte[] material = dig.digest((clientKey + ":" + serverKey + ":" + clientNonce + ":" + serverNonce).getBytes("UTF-8"));
+            dig.update(material);
+            byte[] key = dig.digest(direction.getBytes("UTF-8"));
+            if (AES_GCM.equals(name))
+                key = Arrays.copyOf(key, 16);
+            return new SessionCipher(name, encrypt, key);
+        } catch (UnsupportedEncodingException e) {
+            throw new NoSuchAlgorithmException("UTF-8 is not supported");
+        }
+    }
+
+    private static String getTransformation(String name) throws NoSuchAlgorithmException {
+        if (AES_GCM.equals(name)) return "AES/GCM/NoPadding";
+        if (CHACHA20_POLY1305.equals(name)) return "ChaCha20-Poly1305";
+        throw new NoSuchAlgorithmException("unknown session cipher '" + name + "'");
+    }
+
+    private final String name;
+    private final boolean encrypt;
+    private final javax.crypto.Cipher cipher;
+    private final SecretKeySpec key;
+    private final byte[] nonce = new byte[NONCE_SIZE];
+    // the last record sealed or opened
+    private long counter = 0;
+
+    private SessionCipher(String name, boolean encrypt, byte[] key) throws GeneralSecurityException {
+        this.name = name;
+        this.encrypt = encrypt;
+        cipher = javax.crypto.Cipher.getInstance(getTransformation(name));
+        this.key = new SecretKeySpec(key, AES_GCM.equals(name) ? "AES" : "ChaCha20");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Encrypts plain text data into a sealed record.
+     * @param data the array containing the plain text
+     * @param offset the offset of the plain text in the array
+     * @param length the length of the plain text
+     * @param aad additional data to authenticate along with the record
+     * @param out the array to write the record to, must have room for length + OVERHEAD bytes
+     * @param outOffset the offset in the output array
+     * @return the length of the sealed record
+     */
+    public int seal(byte[] data, int offset, int length, byte aad, byte[] out, int outOffset) throws GeneralSecurityException {
+        if (! encrypt)
+            throw new IllegalStateException("session cipher is for decryption");
+        counter++;
+        setNonce(counter);
+        cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, key, getParameters(nonce, 0));
+        cipher.updateAAD(new byte[] { aad });
+        System.arraycopy(nonce, 0, out, outOffset, NONCE_SIZE);
+        return NONCE_SIZE + cipher.doFinal(data, offset, length, out, outOffset + NONCE_SIZE);
+    }
+
+    /**
+     * Decrypts a sealed record in place.
+     * @param data the array containing the record
+     * @param offset the offset of the record in the array
+     * @param length the length of the record
+     * @param aad additional data that was authenticated along with the record
+     * @return the length of the plain text, which starts at the offset
+     * @throws GeneralSecurityException if the record fails authentication
+     * or isn't the next record in the session
+     */
+    public int open(byte[] data, int offset, int length, byte aad) throws GeneralSecurityException {
+        if (encrypt)
+            throw new IllegalStateException("session cipher is for encryption");
+        if (length < OVERHEAD)
+            throw new GeneralSecurityException("record is too short");
+        // only the next nonce is accepted, so records can't be replayed, dropped or reordered
+        setNonce(counter + 1);
+        for (int i = 0; i < NONCE_SIZE; i++)
+            if (data[offset + i] != nonce[i])
+                throw new GeneralSecurityException("record is out of sequence");
+        cipher.init(javax.crypto.Cipher.DECRYPT_MODE, key, getParameters(nonce, 0));
+        cipher.updateAAD(new byte[] { aad });
+        int len = cipher.doFinal(data, offset + NONCE_SIZE, length - NONCE_SIZE, data, offset);
+        counter++;
+        return len;
+    }
+
+    private void setNonce(long n) {
+        for (int i = 0; i < 8; i++)
+            nonce[NONCE_SIZE - 1 - i] = (byte)(n >>> (i * 8));
+    }
+
+    private AlgorithmParameterSpec getParameters(byte[] data, int offset) throws GeneralSecurityException {
+        if (AES_GCM.equals(name)) {
+            if (gcmParameters == null)
+                throw new NoSuchAlgorithmException("AES-GCM requires Java 7 or later");
+            try {
+                return (AlgorithmParameterSpec)gcmParameters.newInstance(TAG_SIZE * 8, data, offset, NONCE_SIZE);
+            } catch (Exception e) {
+                throw new GeneralSecurityException("unable to create AES-GCM parameters: " + e.getMessage());
+            }
+        }
+        return new IvParameterSpec(data, offset, NONCE_SIZE);
+    }
+
+}
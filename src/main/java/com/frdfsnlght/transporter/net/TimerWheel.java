@@ -0,0 +1,202 @@
+/*
+ * Copyright 2011 frdfsnlght <frdfsnlght@gmail.com>.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.frdfsnlght.transporter.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import com.frdfsnlght.transporter.ThreadState;
+import com.frdfsnlght.transporter.Utils;
+
+/**
+ * A hashed timing wheel.
+ * <p>
+ * Timeouts are kept in doubly linked lists hung off a ring of slots, one
+ * slot per tick, so scheduling and cancelling are constant time no matter
+ * how many timeouts are pending. Timeouts further away than one turn of
+ * the wheel carry a count of the turns left.
+ * </p>
+ * <p>
+ * Expired tasks run on the wheel's thread and must not block.
+ * </p>
+ *
+ * @author frdfsnlght <frdfsnlght@gmail.com>
+ */
+public final class TimerWheel implements Runnable {
+
+    public static final class Timeout {
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private long rounds;
+        private int slot = -1;
+        private Timeout prev;
+        private Timeout next;
+        private volatile boolean cancelled = false;
+
+        private Timeout(TimerWheel wheel, Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        // returns true if the timeout was still pending
+        public boolean cancel() {
+            cancelled = true;
+            return wheel.remove(this);
+        }
+
+        // true once cancel has been called, even if the timeout had already expired
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final Timeout[] slots;
+    private final int mask;
+
+    // guarded by this
+    private long tick = 0;
+    private long startTime;
+    private int size = 0;
+
+    private Thread thread = null;
+    private volatile ThreadState state = ThreadState.STOPPED;
+
+    // numSlots is rounded up to a power of 2
+    public TimerWheel(String name, long tickMillis, int numSlots) {
+        if (tickMillis < 1)
+            throw new IllegalArgumentException("tickMillis must be at least 1");
+        int n = 1;
+        while (n < numSlots) n <<= 1;
+        this.name = name;
+        tickNanos = tickMillis * 1000000L;
+        slots = new Timeout[n];
+        mask = n - 1;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        // keep the current tick so timeouts scheduled while stopped stay in place
+        startTime = System.nanoTime() - (tick * tickNanos);
+        state = ThreadState.RUNNING;
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // pending timeouts are kept and resume when the wheel is started again
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            if (t == null) return;
+            state = ThreadState.STOP;
+            notifyAll();
+        }
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException ie) {}
+        }
+        synchronized (this) {
+            thread = null;
+        }
+    }
+
+    // delay is millis, can be called from any thread
+    public Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(this, task);
+        long ticks = (delay * 1000000L + tickNanos - 1) / tickNanos;
+        if (ticks < 1) ticks = 1;
+        synchronized (this) {
+            long due = tick + ticks;
+            timeout.rounds = ticks / slots.length;
+            timeout.slot = (int)(due & mask);
+            timeout.next = slots[timeout.slot];
+            if (timeout.next != null)
+                timeout.next.prev = timeout;
+            slots[timeout.slot] = timeout;
+            size++;
+        }
+        return timeout;
+    }
+
+    public synchronized int getPending() {
+        return size;
+    }
+
+    private synchronized boolean remove(Timeout timeout) {
+        if (timeout.slot == -1) return false;
+        if (timeout.prev == null)
+            slots[timeout.slot] = timeout.next;
+        else
+            timeout.prev.next = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        timeout.slot = -1;
+        size--;
+        return true;
+    }
+
+    @Override
+    public void run() {
+        List<Timeout> expired = new ArrayList<Timeout>();
+        while (true) {
+            synchronized (this) {
+                while (state == ThreadState.RUNNING) {
+                    long wait = startTime + ((tick + 1) * tickNanos) - System.nanoTime();
+                    if (wait <= 0) break;
+                    try {
+                        wait(wait / 1000000L, (int)(wait % 1000000L));
+                    } catch (InterruptedException ie) {}
+                }
+                if (state != ThreadState.RUNNING) break;
+                expire(expired);
+            }
+            for (Timeout timeout : expired) {
+                if (timeout.cancelled) continue;
+                try {
+                    timeout.task.run();
+                } catch (Throwable t) {
+                    Utils.severe(t, "unhandled exception in timer task: %s", t.getMessage());
+                }
+            }
+            expired.clear();
+        }
+        state = ThreadState.STOPPED;
+    }
+
+    // called with the lock held, advances one tick
+    private void expire(List<Timeout> expired) {
+        int slot = (int)(tick & mask);
+        tick++;
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0)
+                timeout.rounds--;
+            else {
+                remove(timeout);
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+}
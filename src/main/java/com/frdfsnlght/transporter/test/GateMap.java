@@ -35,9 +35,35 @@ public class GateMap {
         //testBounds();
         //testVolume();
         //benchmark();
+        testGrowth();
 
     }
 
+    // gates on both sides of 0 used to keep the tree growing forever
+    private static void testGrowth() {
+        com.frdfsnlght.transporter.GateMap gm = new com.frdfsnlght.transporter.GateMap();
+        gm.setChunked(false);
+        int[][] points = { {96, 64, 96}, {-50, 64, -50}, {-50, 64, 96}, {96, 64, -50}, {-29999000, 64, 29999000} };
+        LocalGateImpl[] gates = new LocalGateImpl[points.length];
+        try {
+            for (int i = 0; i < points.length; i++) {
+                gates[i] = new TestGate(null, "Gate" + i, "tab", BlockFace.NORTH, new Random(i));
+                Volume v = new Volume(gates[i], com.frdfsnlght.transporter.GateMap.PORTAL);
+                v.addPoint(points[i][0], points[i][1], points[i][2]);
+                gm.put(v);
+            }
+        } catch (GateException ge) {
+            System.out.println("unable to create gate: " + ge.getMessage());
+            return;
+        }
+        for (int i = 0; i < points.length; i++) {
+            Location loc = new Location(null, points[i][0], points[i][1], points[i][2]);
+            LocalGateImpl gate = gm.getGate(loc, com.frdfsnlght.transporter.GateMap.PORTAL);
+            System.out.println("Gate" + i + " @ " + new Point(loc) + ": " + ((gate == gates[i]) ? "found" : "MISSING"));
+        }
+        System.out.println("New gate map has " + gm.nodeCount() + " nodes");
+    }
+
     private static void testBounds() {
         Bounds b = new Bounds();
         b.set(new Point(-10, -10, -10));
@@ -71,7 +97,7 @@ public class GateMap {
     }
 
     private static void testVolume() {
-        Volume v = new Volume(null);
+        Volume v = new Volume(null, com.frdfsnlght.transporter.GateMap.PORTAL);
         v.setBounds(new Point(-10, -10, -10), new Point(10, 10, 10));
         System.out.println("Volume: " + v);
 
@@ -81,7 +107,7 @@ public class GateMap {
         for (int i = 0; i < vols.length; i++)
             System.out.println(" i=" + i + ": " + vols[i]);
 
-        v = new Volume(null);
+        v = new Volume(null, com.frdfsnlght.transporter.GateMap.PORTAL);
         for (int i = 0; i < 10; i++)
             v.addPoint(new Point(i, i, i));
         System.out.println("Volume: " + v);
@@ -105,7 +105,7 @@ public final class TestGate extends LocalGateImpl {
     */
 
     public Volume getVolume() {
-        Volume vol = new Volume(this);
+        Volume vol = new Volume(this, com.frdfsnlght.transporter.GateMap.PORTAL);
         for (Location l : getBlocks())
             vol.addPoint(new Point(l));
         return vol;